@@ -0,0 +1,243 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/*
+ * LocalStore that survives restarts. Values are served from an in-memory
+ * OffHeapStore, and every put and remove is first appended to a
+ * SegmentLog in the node's data directory; a write returns once the log
+ * has been forced, with concurrent writers sharing one fsync. Opening the
+ * store rebuilds the in-memory table from the log's snapshot and segments.
+ *
+ * Once the sealed segments take more than twice the space of the live
+ * values they are compacted into a fresh snapshot on a background thread.
+ */
+class DurableStore implements LocalStore
+{
+    private static final ExecutorService COMPACTOR = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "store-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final OffHeapStore memory;
+    private final SegmentLog log;
+    // Keeps each log record and its in-memory update in the same order
+    private final Object writeLock = new Object();
+    private final AtomicBoolean compacting = new AtomicBoolean(false);
+    // Held while compacting, so close() never clears the table a snapshot is being taken from
+    private final Object compactionLock = new Object();
+    private boolean closed = false;
+
+    public DurableStore(File directory, long capacityBytes) throws IOException
+    {
+        this(directory, capacityBytes, SegmentLog.DEFAULT_SEGMENT_SIZE);
+    }
+
+    DurableStore(File directory, long capacityBytes, int segmentSize) throws IOException
+    {
+        memory = new OffHeapStore(capacityBytes);
+        log = new SegmentLog(directory, segmentSize);
+
+        long start = System.currentTimeMillis();
+        log.recover(new SegmentLog.RecordVisitor() {
+            @Override
+            public void put(KademliaId key, byte[] value)
+            {
+                memory.put(key, value);
+            }
+
+            @Override
+            public void remove(KademliaId key)
+            {
+                memory.remove(key);
+            }
+        });
+        if (memory.size() > 0) {
+            System.out.println("Recovered " + memory.size() + " keys from " + directory + " in " +
+                    (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+
+    @Override
+    public void put(KademliaId key, byte[] value)
+    {
+        try {
+            long sequence;
+            synchronized (writeLock) {
+                sequence = log.append(SegmentLog.PUT, key, value);
+                memory.put(key, value);
+            }
+            log.awaitDurable(sequence);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        compactIfNeeded();
+    }
+
+    @Override
+    public boolean putIfRoom(KademliaId key, byte[] value)
+    {
+        try {
+            long sequence;
+            synchronized (writeLock) {
+                // Only writes under this lock change the table, so the room can't go between check and put
+                if (!memory.hasRoomFor(value)) {
+                    return false;
+                }
+                sequence = log.append(SegmentLog.PUT, key, value);
+                memory.put(key, value);
+            }
+            log.awaitDurable(sequence);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        compactIfNeeded();
+        return true;
+    }
+
+    @Override
+    public boolean remove(KademliaId key)
+    {
+        try {
+            long sequence;
+            synchronized (writeLock) {
+                if (!memory.contains(key)) {
+                    return false;
+                }
+                sequence = log.append(SegmentLog.REMOVE, key, null);
+                memory.remove(key);
+            }
+            log.awaitDurable(sequence);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        compactIfNeeded();
+        return true;
+    }
+
+    // Logs every removal first and waits for a single fsync covering them all
+    @Override
+    public int removeAll(List<KademliaId> keys)
+    {
+        int removed = 0;
+        try {
+            long sequence = -1;
+            synchronized (writeLock) {
+                for (KademliaId key : keys) {
+                    if (memory.contains(key)) {
+                        sequence = log.append(SegmentLog.REMOVE, key, null);
+                        memory.remove(key);
+                        removed++;
+                    }
+                }
+            }
+            if (removed > 0) {
+                log.awaitDurable(sequence);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        compactIfNeeded();
+        return removed;
+    }
+
+    @Override
+    public byte[] get(KademliaId key)
+    {
+        return memory.get(key);
+    }
+
+    @Override
+    public boolean contains(KademliaId key)
+    {
+        return memory.contains(key);
+    }
+
+    @Override
+    public int size()
+    {
+        return memory.size();
+    }
+
+    @Override
+    public long usedBytes()
+    {
+        return memory.usedBytes();
+    }
+
+    @Override
+    public long capacityBytes()
+    {
+        return memory.capacityBytes();
+    }
+
+    @Override
+    public long entryBytes(int valueLength)
+    {
+        return memory.entryBytes(valueLength);
+    }
+
+    @Override
+    public List<KademliaId> keys()
+    {
+        return memory.keys();
+    }
+
+    @Override
+    public void forEachKey(Consumer<KademliaId> action)
+    {
+        memory.forEachKey(action);
+    }
+
+    // Flushes the log and drops the in-memory copy, the data stays on disk for the next open
+    @Override
+    public void close()
+    {
+        synchronized (compactionLock) {
+            closed = true;
+            synchronized (writeLock) {
+                log.close();
+                memory.close();
+            }
+        }
+    }
+
+    private void compactIfNeeded()
+    {
+        if (log.sealedBytes() <= 2 * memory.usedBytes() || !compacting.compareAndSet(false, true)) {
+            return;
+        }
+
+        COMPACTOR.execute(() -> {
+            try {
+                compact();
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                compacting.set(false);
+            }
+        });
+    }
+
+    // Seals the active segment and folds every sealed one into a fresh snapshot, on the calling thread
+    void compact() throws IOException
+    {
+        synchronized (compactionLock) {
+            if (closed) {
+                return;
+            }
+            long snapshotId;
+            synchronized (writeLock) {
+                // Every record in the sealed segments has been applied to memory
+                snapshotId = log.seal();
+            }
+            log.writeSnapshot(snapshotId, memory.keys(), memory::get);
+        }
+    }
+}
@@ -0,0 +1,250 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+
+/*
+ * Immutable 160-bit identifier for both nodes and keys, held inline as two
+ * longs and an int (most significant bits first) and compared as an
+ * unsigned number. Hashing goes through a per-thread MessageDigest and
+ * scratch buffers, so the only allocation per hash is the resulting id.
+ * XOR distance comparisons and bucket indexes work limb by limb without
+ * materialising the distance.
+ */
+final class KademliaId implements Comparable<KademliaId>
+{
+    static final int BITS = 160;
+    static final int BYTES = BITS / 8;
+
+    private static final ThreadLocal<Hasher> HASHER = ThreadLocal.withInitial(Hasher::new);
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final long high;
+    private final long middle;
+    private final int low;
+
+    KademliaId(long high, long middle, int low)
+    {
+        this.high = high;
+        this.middle = middle;
+        this.low = low;
+    }
+
+    // SHA-1 of the key's decimal string, the same digest the hex keys used to be built from
+    static KademliaId sha1(int key)
+    {
+        return HASHER.get().hash(key);
+    }
+
+    static KademliaId sha1(byte[] input)
+    {
+        return HASHER.get().hash(input, 0, input.length);
+    }
+
+    /*
+     * Places a node given by a small number (as used by the simulator and
+     * tests) in the 160-bit space. The prefix keeps node 10 from sharing
+     * an id with key 10.
+     */
+    static KademliaId ofNodeNumber(int number)
+    {
+        return sha1(("node-" + number).getBytes(StandardCharsets.UTF_8));
+    }
+
+    static KademliaId random(Random random)
+    {
+        return new KademliaId(random.nextLong(), random.nextLong(), random.nextInt());
+    }
+
+    // A random id sharing exactly prefixLength leading bits with this one, i.e. one in bucket 159 - prefixLength
+    KademliaId randomWithPrefix(int prefixLength, Random random)
+    {
+        if (prefixLength < 0 || prefixLength >= BITS) {
+            throw new IllegalArgumentException("Prefix length " + prefixLength + " out of range");
+        }
+        // Build the distance: zeros down to the first differing bit, a one there, random below
+        long h = random.nextLong();
+        long m = random.nextLong();
+        int l = random.nextInt();
+        if (prefixLength < 64) {
+            h = (h & (-1L >>> prefixLength)) | (1L << (63 - prefixLength));
+        } else if (prefixLength < 128) {
+            int bit = prefixLength - 64;
+            h = 0;
+            m = (m & (-1L >>> bit)) | (1L << (63 - bit));
+        } else {
+            int bit = prefixLength - 128;
+            h = 0;
+            m = 0;
+            l = (l & (-1 >>> bit)) | (1 << (31 - bit));
+        }
+        return xor(new KademliaId(h, m, l));
+    }
+
+    static KademliaId readFrom(ByteBuffer buffer)
+    {
+        return new KademliaId(buffer.getLong(), buffer.getLong(), buffer.getInt());
+    }
+
+    void writeTo(ByteBuffer buffer)
+    {
+        buffer.putLong(high);
+        buffer.putLong(middle);
+        buffer.putInt(low);
+    }
+
+    KademliaId xor(KademliaId other)
+    {
+        return new KademliaId(high ^ other.high, middle ^ other.middle, low ^ other.low);
+    }
+
+    // Number of leading bits shared with the other id, 160 when they are equal
+    int commonPrefixLength(KademliaId other)
+    {
+        long x = high ^ other.high;
+        if (x != 0) return Long.numberOfLeadingZeros(x);
+        x = middle ^ other.middle;
+        if (x != 0) return 64 + Long.numberOfLeadingZeros(x);
+        int y = low ^ other.low;
+        if (y != 0) return 128 + Integer.numberOfLeadingZeros(y);
+        return BITS;
+    }
+
+    // Bit n counted from the least significant end, as BigInteger.testBit
+    boolean testBit(int n)
+    {
+        if (n < 32) return ((low >>> n) & 1) != 0;
+        if (n < 96) return ((middle >>> (n - 32)) & 1L) != 0;
+        return ((high >>> (n - 96)) & 1L) != 0;
+    }
+
+    // Compares a ^ target with b ^ target, negative when a is closer to target
+    static int compareDistance(KademliaId target, KademliaId a, KademliaId b)
+    {
+        int result = Long.compareUnsigned(a.high ^ target.high, b.high ^ target.high);
+        if (result != 0) return result;
+        result = Long.compareUnsigned(a.middle ^ target.middle, b.middle ^ target.middle);
+        if (result != 0) return result;
+        return Integer.compareUnsigned(a.low ^ target.low, b.low ^ target.low);
+    }
+
+    static KademliaId fromBytes(byte[] bytes, int offset)
+    {
+        long high = 0;
+        long middle = 0;
+        int low = 0;
+        for (int i = 0; i < 8; i++) {
+            high = (high << 8) | (bytes[offset + i] & 0xFF);
+            middle = (middle << 8) | (bytes[offset + 8 + i] & 0xFF);
+        }
+        for (int i = 16; i < 20; i++) {
+            low = (low << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return new KademliaId(high, middle, low);
+    }
+
+    long getHigh() { return high; }
+    long getMiddle() { return middle; }
+    int getLow() { return low; }
+
+    @Override
+    public int compareTo(KademliaId other)
+    {
+        int result = Long.compareUnsigned(high, other.high);
+        if (result != 0) return result;
+        result = Long.compareUnsigned(middle, other.middle);
+        if (result != 0) return result;
+        return Integer.compareUnsigned(low, other.low);
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (this == o) return true;
+        if (!(o instanceof KademliaId)) return false;
+        KademliaId other = (KademliaId) o;
+        return high == other.high && middle == other.middle && low == other.low;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        // The bits are already a cryptographic hash, just fold them
+        long folded = high ^ middle ^ low;
+        return (int) (folded ^ (folded >>> 32));
+    }
+
+    // First eight hex digits, enough to tell nodes apart in logs
+    public String toShortHex()
+    {
+        return toHex().substring(0, 8);
+    }
+
+    // Only used for display, never on the lookup path
+    public String toHex()
+    {
+        char[] chars = new char[BYTES * 2];
+        writeHex(chars, 0, high, 16);
+        writeHex(chars, 16, middle, 16);
+        writeHex(chars, 32, low, 8);
+        return new String(chars);
+    }
+
+    @Override
+    public String toString()
+    {
+        return toHex();
+    }
+
+    private static void writeHex(char[] chars, int offset, long value, int digits)
+    {
+        for (int i = digits - 1; i >= 0; i--) {
+            chars[offset + i] = HEX[(int) (value & 0xF)];
+            value >>>= 4;
+        }
+    }
+
+    private static final class Hasher
+    {
+        private final MessageDigest digest;
+        private final byte[] input = new byte[11];
+        private final byte[] output = new byte[BYTES];
+
+        Hasher()
+        {
+            try {
+                digest = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-1 is not available", e);
+            }
+        }
+
+        KademliaId hash(int key)
+        {
+            // Decimal digits written right to left, matching String.valueOf(key).getBytes()
+            int position = input.length;
+            long value = Math.abs((long) key);
+            do {
+                input[--position] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (value != 0);
+            if (key < 0) {
+                input[--position] = '-';
+            }
+            return hash(input, position, input.length - position);
+        }
+
+        KademliaId hash(byte[] bytes, int offset, int length)
+        {
+            digest.update(bytes, offset, length);
+            try {
+                digest.digest(output, 0, BYTES);
+            } catch (DigestException e) {
+                throw new IllegalStateException(e);
+            }
+            return fromBytes(output, 0);
+        }
+    }
+}
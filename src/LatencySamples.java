@@ -0,0 +1,43 @@
+import java.util.Arrays;
+
+/*
+ * The most recent round-trip times of one kind of request, kept so that
+ * delays can be picked from their actual distribution rather than a fixed
+ * guess. Older samples are overwritten once the buffer is full. Safe to
+ * share between threads.
+ */
+class LatencySamples
+{
+    private final long[] samples;
+    private int count;
+    private int next;
+
+    LatencySamples(int capacity)
+    {
+        samples = new long[capacity];
+    }
+
+    synchronized void record(long nanos)
+    {
+        samples[next] = nanos;
+        next = (next + 1) % samples.length;
+        count = Math.min(count + 1, samples.length);
+    }
+
+    synchronized int count()
+    {
+        return count;
+    }
+
+    // The given percentile (0 to 100) of the recorded samples in nanoseconds
+    synchronized long percentile(double percentile)
+    {
+        if (count == 0) {
+            throw new IllegalStateException("No samples recorded");
+        }
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(percentile / 100 * count) - 1;
+        return sorted[Math.max(0, Math.min(rank, count - 1))];
+    }
+}
@@ -0,0 +1,75 @@
+import java.io.Closeable;
+import java.util.List;
+import java.util.function.Consumer;
+
+/*
+ * Storage engine behind a node's share of the key space: values of any
+ * length keyed by their 160-bit key ID. Capacity is measured in bytes, so
+ * the node can tell when it is full regardless of how many keys it holds.
+ * Implementations must be safe to call from the event loop and from
+ * request handlers at the same time.
+ */
+interface LocalStore extends Closeable
+{
+    // Stores or replaces the value held for the key
+    void put(KademliaId key, byte[] value);
+
+    /*
+     * Stores the value only if it fits in what is left of the capacity,
+     * checked and stored in one step so concurrent writers can't overfill
+     * the store between them. Returns whether it was stored.
+     */
+    boolean putIfRoom(KademliaId key, byte[] value);
+
+    // A copy of the stored value, or null if the key is not held here
+    byte[] get(KademliaId key);
+
+    boolean contains(KademliaId key);
+
+    boolean remove(KademliaId key);
+
+    // Removes every given key, returns how many were held
+    default int removeAll(List<KademliaId> keys)
+    {
+        int removed = 0;
+        for (KademliaId key : keys) {
+            if (remove(key)) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    int size();
+
+    // Bytes currently taken by stored values, including allocation overhead
+    long usedBytes();
+
+    long capacityBytes();
+
+    // Bytes a value of this length takes once stored, including allocation overhead
+    long entryBytes(int valueLength);
+
+    default boolean isFull()
+    {
+        return usedBytes() >= capacityBytes();
+    }
+
+    // Whether the value fits in what is left of the capacity
+    default boolean hasRoomFor(byte[] value)
+    {
+        return usedBytes() + entryBytes(value.length) <= capacityBytes();
+    }
+
+    // Snapshot of the stored keys
+    List<KademliaId> keys();
+
+    // Passes every stored key to the action without copying them first, the action must not write to the store
+    default void forEachKey(Consumer<KademliaId> action)
+    {
+        keys().forEach(action);
+    }
+
+    @Override
+    void close();
+}
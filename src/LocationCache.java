@@ -0,0 +1,66 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Bounded map from key IDs to the node last seen holding each key, every
+ * entry with its own expiry. Filled by a node's own successful lookups and
+ * by the CACHE_LOCATION hints other nodes leave along their lookup paths.
+ * Once full, the least recently used entry makes room for a new one.
+ * Safe to call from the event loop and from request handlers at once.
+ */
+class LocationCache
+{
+    private static class Entry
+    {
+        final Triplet holder;
+        final long expiresAt;
+
+        Entry(Triplet holder, long expiresAt)
+        {
+            this.holder = holder;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final LinkedHashMap<KademliaId, Entry> entries;
+
+    LocationCache(int capacity)
+    {
+        entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<KademliaId, Entry> eldest)
+            {
+                return size() > capacity;
+            }
+        };
+    }
+
+    synchronized void put(KademliaId keyId, Triplet holder, long ttlMillis)
+    {
+        entries.put(keyId, new Entry(holder, System.nanoTime() + ttlMillis * 1_000_000));
+    }
+
+    // The cached holder of the key, or null if there is none or it has expired
+    synchronized Triplet get(KademliaId keyId)
+    {
+        Entry entry = entries.get(keyId);
+        if (entry == null) {
+            return null;
+        }
+        if (System.nanoTime() - entry.expiresAt >= 0) {
+            entries.remove(keyId);
+            return null;
+        }
+        return entry.holder;
+    }
+
+    synchronized void remove(KademliaId keyId)
+    {
+        entries.remove(keyId);
+    }
+
+    synchronized int size()
+    {
+        return entries.size();
+    }
+}
@@ -0,0 +1,47 @@
+import java.util.List;
+
+/*
+ * Outcome of an iterative lookup: the k closest contacts that answered,
+ * plus what it cost to find them. A key lookup that found the key also
+ * carries the node holding it.
+ */
+class LookupResult
+{
+    private final List<Triplet> contacts;
+    private final int messagesSent;
+    private final int hops;
+    private final int timeouts;
+    private final Triplet holder;
+    private final Triplet closestMiss;
+
+    public LookupResult(List<Triplet> contacts, int messagesSent, int hops, int timeouts)
+    {
+        this(contacts, messagesSent, hops, timeouts, null, null);
+    }
+
+    public LookupResult(List<Triplet> contacts, int messagesSent, int hops, int timeouts, Triplet holder, Triplet closestMiss)
+    {
+        this.contacts = contacts;
+        this.messagesSent = messagesSent;
+        this.hops = hops;
+        this.timeouts = timeouts;
+        this.holder = holder;
+        this.closestMiss = closestMiss;
+    }
+
+    public List<Triplet> getContacts() { return contacts; }
+    public int getMessagesSent() { return messagesSent; }
+    public int getHops() { return hops; }
+    public int getTimeouts() { return timeouts; }
+    // Null for node lookups and for key lookups that didn't find the key
+    public Triplet getHolder() { return holder; }
+    // Key lookups only: the closest node asked that answered without the key, null if none did
+    public Triplet getClosestMiss() { return closestMiss; }
+
+    @Override
+    public String toString()
+    {
+        return "LookupResult{contacts=" + contacts.size() + ", messages=" + messagesSent +
+                ", hops=" + hops + ", timeouts=" + timeouts + "}";
+    }
+}
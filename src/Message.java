@@ -0,0 +1,91 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * A decoded protocol message. Every message carries the same fixed header
+ * (type, transaction id and the sender's contact), the remaining fields are
+ * only filled in for the message types that use them.
+ */
+class Message
+{
+    static final byte PING = 1;
+    static final byte PONG = 2;
+    static final byte FIND_NODE = 3;
+    static final byte CLOSEST_NODES = 4;
+    static final byte FIND_KEY = 5;
+    static final byte FOUND_KEY = 6;
+    static final byte STORE_KEY = 7;
+    static final byte STORED_KEY = 8;
+    static final byte GOODBYE = 9;
+    static final byte STORE_KEYS = 10;
+    static final byte STORE_KEYS_REPLY = 11;
+    static final byte FIND_KEYS = 12;
+    static final byte FOUND_KEYS = 13;
+    static final byte CACHE_LOCATION = 14;
+    static final byte FIND_NEIGHBOURS = 15;
+    static final byte PULL_KEYS = 16;
+    static final byte PULLED_KEYS = 17;
+
+    byte type;
+    int transactionId;
+    Triplet sender;
+
+    // FIND_NODE target ID
+    KademliaId target;
+
+    // FIND_KEY / STORE_KEY / STORED_KEY / CACHE_LOCATION hashed key, and the PULL_KEYS cursor (null for none)
+    KademliaId keyId;
+
+    // FOUND_KEY / CACHE_LOCATION node holding keyId, which a node answering from its location cache isn't itself
+    Triplet holder;
+
+    // CACHE_LOCATION lifetime of the hint
+    int ttlMillis;
+
+    // FIND_NEIGHBOURS: how many of its closest contacts the sender asks for
+    int wanted;
+
+    // PULL_KEYS: the sender wants another batch, PULLED_KEYS: keys remain after this batch
+    boolean more;
+
+    // STORE_KEY value stored under keyId
+    byte[] value;
+
+    // STORE_KEYS and PULLED_KEYS batches, values.get(i) is stored under keyIds.get(i),
+    // the keys asked for by FIND_KEYS and the keys acknowledged by PULL_KEYS
+    final List<KademliaId> keyIds = new ArrayList<>();
+    final List<byte[]> values = new ArrayList<>();
+
+    // STORE_KEYS_REPLY: whether each key of the batch, in order, was taken
+    boolean[] accepted;
+
+    // FOUND_KEYS: whether each key of the FIND_KEYS request, in order, is held by the sender
+    boolean[] held;
+
+    // CLOSEST_NODES payload, and the contacts offered by a STORE_KEYS_REPLY that rejected keys
+    final List<Triplet> contacts = new ArrayList<>();
+
+    static String typeName(byte type)
+    {
+        switch (type) {
+            case PING: return "PING";
+            case PONG: return "PONG";
+            case FIND_NODE: return "FIND_NODE";
+            case CLOSEST_NODES: return "CLOSEST_NODES";
+            case FIND_KEY: return "FIND_KEY";
+            case FOUND_KEY: return "FOUND_KEY";
+            case STORE_KEY: return "STORE_KEY";
+            case STORED_KEY: return "STORED_KEY";
+            case GOODBYE: return "GOODBYE";
+            case STORE_KEYS: return "STORE_KEYS";
+            case STORE_KEYS_REPLY: return "STORE_KEYS_REPLY";
+            case FIND_KEYS: return "FIND_KEYS";
+            case FOUND_KEYS: return "FOUND_KEYS";
+            case CACHE_LOCATION: return "CACHE_LOCATION";
+            case FIND_NEIGHBOURS: return "FIND_NEIGHBOURS";
+            case PULL_KEYS: return "PULL_KEYS";
+            case PULLED_KEYS: return "PULLED_KEYS";
+            default: return "UNKNOWN(" + type + ")";
+        }
+    }
+}
@@ -1,6 +1,7 @@
 import java.util.*;
 import java.io.IOException;
 import java.net.DatagramSocket;
+import java.util.concurrent.CompletableFuture;
 
 public class NetworkSimulator {
     private final List<Node> nodes;
@@ -16,7 +17,7 @@ public class NetworkSimulator {
         for (int i = 0; i < NUM_NODES; i++) {
             String ip = "127.0.0.1"; // Localhost for simplicity
             int port = 8100 + i;     // Assigning unique ports
-            int nodeId = random.nextInt(256); // For 8-bit ID space (0-255)
+            KademliaId nodeId = KademliaId.random(random); // Anywhere in the 160-bit ID space
             addNode(ip, port, nodeId);
             System.out.println("Created node: " + ip + ":" + port + " with ID " + nodeId);
         }
@@ -57,32 +58,32 @@ public class NetworkSimulator {
     }
 
     public boolean nodeExists(int NODE_ID) {
-        return nodes.stream().anyMatch(node -> node.getNodeInformation().getNODE_ID() == NODE_ID);
+        return nodeExists(KademliaId.ofNodeNumber(NODE_ID));
     }
 
+    public boolean nodeExists(KademliaId NODE_ID) {
+        return nodes.stream().anyMatch(node -> node.getNodeInformation().getNODE_ID().equals(NODE_ID));
+    }
+
+    // Numbered nodes are hashed into the 160-bit ID space, see KademliaId.ofNodeNumber
     public void addNode(String IP, int UDP_PORT, int NODE_ID) {
+        addNode(IP, UDP_PORT, KademliaId.ofNodeNumber(NODE_ID));
+    }
+
+    public void addNode(String IP, int UDP_PORT, KademliaId NODE_ID) {
         if (isPortInUse(UDP_PORT)) {
             System.out.println("Port " + UDP_PORT + " is already in use. Trying alternative port.");
             UDP_PORT = findAvailablePort(UDP_PORT+1);
         }
 
         Node newNode = new Node(IP, UDP_PORT, NODE_ID);
-        nodes.add(newNode);
 
-        // Allow some time for the UDP server to start
-        try {
-            Thread.sleep(100);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
-
-        // If there are other nodes, have the new node ping a few to start building its routing table
-        if (nodes.size() > 1) {
-            List<Node> nodesToPing = getRandomNodes(newNode, 3);
-            for (Node targetNode : nodesToPing) {
-                newNode.sendPing(targetNode);
-            }
+        // The port is bound by the time the constructor returns, join through any node already in the network
+        if (!nodes.isEmpty()) {
+            Node bootstrap = nodes.get(random.nextInt(nodes.size()));
+            newNode.join(bootstrap.getNodeInformation());
         }
+        nodes.add(newNode);
 
         System.out.println("Successfully added node to network, displaying node ID: " + newNode.getNodeInformation().getNODE_ID());
     }
@@ -108,6 +109,10 @@ public class NetworkSimulator {
     }
 
     public List<Triplet> lookupNode(int NODE_ID) {
+        return lookupNode(KademliaId.ofNodeNumber(NODE_ID));
+    }
+
+    public List<Triplet> lookupNode(KademliaId NODE_ID) {
         if (nodes.isEmpty()) {
             System.out.println("No nodes in the network to perform lookup.");
             return new ArrayList<>();
@@ -118,9 +123,51 @@ public class NetworkSimulator {
         return startNode.findNode(NODE_ID);
     }
 
+    public LookupResult lookupNodeWithStats(int NODE_ID) {
+        return lookupNodeWithStats(KademliaId.ofNodeNumber(NODE_ID));
+    }
+
+    public LookupResult lookupNodeWithStats(KademliaId NODE_ID) {
+        if (nodes.isEmpty()) {
+            System.out.println("No nodes in the network to perform lookup.");
+            return new LookupResult(new ArrayList<>(), 0, 0, 0);
+        }
+
+        Node startNode = nodes.get(0);
+        return startNode.findNodeWithStats(NODE_ID);
+    }
+
+    // Runs lookups for random IDs from random nodes and reports the average cost per lookup
+    public void measureLookupCost(int lookups) {
+        if (nodes.isEmpty() || lookups <= 0) {
+            System.out.println("No nodes in the network to measure lookups on.");
+            return;
+        }
+
+        long totalMessages = 0;
+        long totalHops = 0;
+        long totalTimeouts = 0;
+        for (int i = 0; i < lookups; i++) {
+            Node startNode = nodes.get(random.nextInt(nodes.size()));
+            LookupResult result = startNode.findNodeWithStats(KademliaId.random(random));
+            totalMessages += result.getMessagesSent();
+            totalHops += result.getHops();
+            totalTimeouts += result.getTimeouts();
+        }
+
+        System.out.println("Lookup cost over " + lookups + " lookups in a network of " + nodes.size() + " nodes:");
+        System.out.println("  Average messages: " + (double) totalMessages / lookups);
+        System.out.println("  Average hops: " + (double) totalHops / lookups);
+        System.out.println("  Average timeouts: " + (double) totalTimeouts / lookups);
+    }
+
     public void removeNode(int NODE_ID) {
+        removeNode(KademliaId.ofNodeNumber(NODE_ID));
+    }
+
+    public void removeNode(KademliaId NODE_ID) {
         List<Triplet> closestNodes = lookupNode(NODE_ID);
-        closestNodes.removeIf(node -> node.getNODE_ID() != NODE_ID);
+        closestNodes.removeIf(node -> !node.getNODE_ID().equals(NODE_ID));
 
         if (closestNodes.isEmpty()) {
             System.out.println("Node with given Node ID: " + NODE_ID + " not found!");
@@ -131,7 +178,7 @@ public class NetworkSimulator {
 
         // Find the node to delete
         Node nodeToDelete = nodes.stream()
-                .filter(node -> node.getNodeInformation().getNODE_ID() == nodeToDeleteInfo.getNODE_ID())
+                .filter(node -> node.getNodeInformation().getNODE_ID().equals(nodeToDeleteInfo.getNODE_ID()))
                 .findFirst()
                 .orElse(null);
 
@@ -140,29 +187,34 @@ public class NetworkSimulator {
             return;
         }
 
-        // Notify other nodes before deletion
-        nodeToDelete.close(); // Assuming such a method exists
+        // The node hands its keys to their new owners before saying goodbye
+        nodeToDelete.close();
 
         // Delete the node
-        nodes.removeIf(node -> node.getNodeInformation().getNODE_ID() == NODE_ID);
+        nodes.removeIf(node -> node.getNodeInformation().getNODE_ID().equals(NODE_ID));
 
         /*Removal of nodes is being adjusted automatically now instead of
         refreshing every node's hash table whenever some random nodes left the network
         refreshRoutingTables();*/
+    }
 
-        // Redistribute Hash Table
-        Map<String, Integer> table = nodeToDelete.getHashTable();
-        System.out.println("Node " + NODE_ID + " to delete hash table: " + table);
+    public void addKey(int key) {
+        addValue(KademliaId.sha1(key), Node.intValue(key));
+    }
 
-        for (Map.Entry<String, Integer> entry : table.entrySet()) {
-            int key = entry.getValue();
-            addKey(key);
+    // Loads many keys at once through the first node, see Node.storeValues()
+    public void addKeys(List<Integer> keys) {
+        if (nodes.isEmpty()) {
+            System.out.println("No nodes in the network to add keys to.");
+            return;
         }
 
-        System.out.println("Successfully redistributed hash table");
+        long start = System.currentTimeMillis();
+        int stored = nodes.get(0).storeKeys(keys);
+        System.out.println("Added " + stored + " of " + keys.size() + " keys in " + (System.currentTimeMillis() - start) + " ms");
     }
 
-    public void addKey(int key) {
+    public void addValue(KademliaId keyId, byte[] value) {
         if (nodes.isEmpty()) {
             System.out.println("No nodes in the network to add key to.");
             return;
@@ -171,8 +223,8 @@ public class NetworkSimulator {
         // Start from any node
         Node startNode = nodes.get(0);
 
-        // Use node lookup to find the closest nodes
-        List<Triplet> closestNodes = startNode.findNode(key);
+        // Use node lookup to find the closest nodes to the key's hash
+        List<Triplet> closestNodes = startNode.findNode(keyId);
 
         if (closestNodes.isEmpty()) {
             System.out.println("No nodes found in the network to store the key.");
@@ -183,47 +235,55 @@ public class NetworkSimulator {
 
         for (Triplet nodeInfo : closestNodes) {
             Node targetNode = nodes.stream()
-                    .filter(n -> n.getNodeInformation().getNODE_ID() == nodeInfo.getNODE_ID())
+                    .filter(n -> n.getNodeInformation().getNODE_ID().equals(nodeInfo.getNODE_ID()))
                     .findFirst()
                     .orElse(null);
 
             if (targetNode != null) {
-                targetNode.storeKey(key);
+                targetNode.storeValue(keyId, value);
                 storedKey = true;
-                System.out.println("Key " + key + " added to node " + targetNode.getNodeInformation().getNODE_ID());
+                System.out.println("Key " + keyId.toShortHex() + " added to node " + targetNode.getNodeInformation().getNODE_ID());
                 break;
             }
         }
 
         if (!storedKey) {
-            System.err.println("No available node found to store key: " + key);
+            System.err.println("No available node found to store key: " + keyId.toShortHex());
         }
     }
 
-    public int findKey(int searchKey) {
+    // Returns the ID of the node holding the key, or null if it wasn't found
+    public KademliaId findKey(int searchKey) {
         if (nodes.isEmpty()) {
             System.out.println("No nodes in the network to search for the key.");
-            return -1;
+            return null;
         }
 
         Node startNode = nodes.get(0);
         return startNode.findKey(searchKey);
     }
 
+    public Map<Integer, KademliaId> findKeys(Collection<Integer> searchKeys) {
+        if (nodes.isEmpty()) {
+            System.out.println("No nodes in the network to search for the keys.");
+            return Collections.emptyMap();
+        }
+
+        Node startNode = nodes.get(0);
+        return startNode.findKeys(searchKeys);
+    }
+
     public List<Node> getNodes() {
         return nodes;
     }
 
+    // Runs a liveness sweep on every node at once and waits for all of them
     public void refreshRoutingTables() {
+        List<CompletableFuture<Void>> sweeps = new ArrayList<>();
         for (Node node : nodes) {
-            node.sendPingKClosest();
-        }
-
-        try {
-            Thread.sleep(1000);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+            sweeps.add(node.sweepLiveness());
         }
+        CompletableFuture.allOf(sweeps.toArray(new CompletableFuture<?>[0])).join();
     }
     public void displayNetworkState() {
         System.out.println("\n===== NETWORK STATE =====");
@@ -232,16 +292,13 @@ public class NetworkSimulator {
         // Display routing tables
         for (Node node : nodes) {
             System.out.println("\nNode ID: " + node.getNodeInformation().getNODE_ID());
-            System.out.println("  Hash table entries: " + node.getHashTable().size());
+            System.out.println("  Hash table entries: " + node.getLocalStore().size());
 
-            Map<Integer, List<Triplet>> routingTable = node.getRoutingTable();
-            System.out.println("  Routing table buckets: " + routingTable.size());
+            RoutingTable routingTable = node.getRoutingTable();
+            System.out.println("  Routing table buckets: " + routingTable.nonEmptyBuckets());
 
             // Count total peers
-            int totalPeers = routingTable.values().stream()
-                    .mapToInt(List::size)
-                    .sum();
-            System.out.println("  Total known peers: " + totalPeers);
+            System.out.println("  Total known peers: " + routingTable.size());
         }
         System.out.println("=======================\n");
     }
@@ -258,8 +315,8 @@ public class NetworkSimulator {
         // Try to find the keys
         for (int i = 0; i < 10; i++) {
             int testKey = i * 10; // Some deterministic keys to search for
-            int result = findKey(testKey);
-            if (result >= 0) {
+            KademliaId result = findKey(testKey);
+            if (result != null) {
                 System.out.println("Key " + testKey + " found at node " + result);
             } else {
                 System.out.println("Key " + testKey + " not found in network");
@@ -272,7 +329,7 @@ public class NetworkSimulator {
             for (int i = 0; i < 3; i++) {
                 if (!nodes.isEmpty()) {
                     int index = random.nextInt(nodes.size());
-                    int nodeId = nodes.get(index).getNodeInformation().getNODE_ID();
+                    KademliaId nodeId = nodes.get(index).getNodeInformation().getNODE_ID();
                     removeNode(nodeId);
 
                    /* try {
@@ -288,8 +345,8 @@ public class NetworkSimulator {
             System.out.println("\nRetesting key lookup after node removal:");
             for (int i = 0; i < 10; i++) {
                 int testKey = i * 10;
-                int result = findKey(testKey);
-                if (result >= 0) {
+                KademliaId result = findKey(testKey);
+                if (result != null) {
                     System.out.println("Key " + testKey + " found at node " + result);
                 } else {
                     System.out.println("Key " + testKey + " not found in network");
@@ -304,7 +361,8 @@ public class NetworkSimulator {
     public void shutdown() {
         for(Node node : nodes)
         {
-            node.close();
+            // Every node is going, there's nobody to hand keys to
+            node.close(false);
         }
         System.out.println("Shutting down simulator with " + nodes.size() + " nodes");
         nodes.clear();
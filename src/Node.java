@@ -1,415 +1,974 @@
 import java.util.*;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.net.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BiConsumer;
 
 public class Node {
-    private final Map<String, Integer> hashTable;
-    private final Map<Integer, List<Triplet>> routingTable;
+    private final LocalStore localStore;
+    private final RoutingTable routingTable;
     public Triplet node_information;
-    private DatagramSocket socket;
-
-    private boolean isLocked = false;
+    private final UdpTransport transport;
+    private UdpTransport.Endpoint endpoint;
+    private RpcClient rpc;
+    private ScheduledFuture<?> livenessTask;
+    private ScheduledFuture<?> refreshTask;
+    private ScheduledFuture<?> snapshotTask;
+    // Holds the routing snapshot (and the key store in durable mode), null when the node keeps nothing on disk
+    private final File dataDir;
+    // Runs handlers that may block off the event loop, at most MAX_REQUESTS_IN_FLIGHT at a time
+    private final RequestDispatcher requestDispatcher;
+
+    private final AtomicBoolean splitInProgress = new AtomicBoolean(false);
+    // Set once close() starts handing our keys off, we take no new ones after that
+    private volatile boolean leaving;
+    // Bucket heads currently being pinged before a possible eviction
+    private final Set<KademliaId> evictionProbes = ConcurrentHashMap.newKeySet();
+    // Where recently looked-up keys live, checked before a lookup and used to answer others' FIND_KEYs
+    private final LocationCache locationCache = new LocationCache(LOCATION_CACHE_SIZE);
+    // When each bucket last had a lookup into its range, in milliseconds
+    private final AtomicLongArray bucketLookups = new AtomicLongArray(BUCKET_COUNT);
+    // Fed by every message we receive, decides when a silent contact is removed
+    private final PhiAccrualDetector failureDetector =
+            new PhiAccrualDetector(PhiAccrualDetector.DEFAULT_THRESHOLD, TimeUnit.SECONDS.toMillis(STALE_CONTACT_SECONDS));
     private static final int K_BUCKET_SIZE = 3;
-    private static final int BUCKET_COUNT = 32;
-    private static final int BUFFER_SIZE = 1024;
-    private static final int MAX_TABLE_SIZE = 50;
-    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
-
+    private static final int BUCKET_COUNT = KademliaId.BITS;
+    // Room for 50 small values, the capacity demo relies on nodes filling up quickly
+    private static final long STORE_CAPACITY_BYTES = 50 * 16;
+    private static final int DEFAULT_ALPHA = 3;
+    private static final int MAX_REQUESTS_IN_FLIGHT = 8;
+    // STORE_KEYS batches a bulk load keeps in flight at once
+    private static final int STORE_PIPELINE_DEPTH = 16;
+    private static final int LOCATION_CACHE_SIZE = 1024;
+    private static final int FIND_KEY_LATENCY_SAMPLES = 128;
+    // Hedge after the 95th percentile FIND_KEY round trip, within these bounds
+    private static final double HEDGE_PERCENTILE = 95;
+    private static final long MIN_HEDGE_DELAY_MILLIS = 5;
+    private static final long MAX_HEDGE_DELAY_MILLIS = 1000;
+    // Used until MIN_HEDGE_SAMPLES round trips have been seen
+    private static final long DEFAULT_HEDGE_DELAY_MILLIS = 50;
+    private static final int MIN_HEDGE_SAMPLES = 16;
+    // Lifetime of a cached location next to its holder, halved for every bit of key prefix further out
+    private static final int LOCATION_CACHE_TTL_MILLIS = 5 * 60 * 1000;
+    private static final String ROUTING_SNAPSHOT_FILE = "routing.dat";
+    private static final int ROUTING_SNAPSHOT_INTERVAL_SECONDS = 60;
+    // A contact we haven't heard from for this long gets pinged by the next liveness sweep
+    private static final int STALE_CONTACT_SECONDS = 30;
+    private static final int LIVENESS_SWEEP_SECONDS = 10;
+    // Pings a sweep may send, the stalest contacts go first
+    private static final int LIVENESS_PROBE_BUDGET = 16;
+    // Contacts a joining node asks each of its new neighbours for
+    private static final int JOIN_NEIGHBOURS_WANTED = 4 * K_BUCKET_SIZE;
+    // A leaving node gives its successors this long to take its keys
+    private static final int HANDOFF_DEADLINE_MILLIS = 5000;
+    // A bucket with no lookup into its range for this long is refreshed with a lookup of a random ID in it
+    private static final int BUCKET_REFRESH_SECONDS = 60;
+    private static final int BUCKET_REFRESH_TICK_SECONDS = 5;
+    // Refresh lookups run per tick, in parallel
+    private static final int BUCKET_REFRESH_BUDGET = 4;
+    private static final long WARM_RESTART_TIMEOUT_MILLIS = 2000;
+    // Number of FIND_NODE or FIND_KEY requests a lookup keeps in flight at once
+    private volatile int alpha = DEFAULT_ALPHA;
+    // Whether key lookups ask another node when the requests in flight are slow, instead of waiting them out
+    private volatile boolean hedgedReads = true;
+    // Round trips of answered FIND_KEY requests, the hedge delay is taken from these
+    private final LatencySamples findKeyLatency = new LatencySamples(FIND_KEY_LATENCY_SAMPLES);
+
+    // Numbered nodes, as used by the simulator, are hashed into the 160-bit ID space
     public Node(String IP_ADDR, int UDP_PORT, int NODE_ID) {
+        this(IP_ADDR, UDP_PORT, KademliaId.ofNodeNumber(NODE_ID));
+    }
+
+    public Node(String IP_ADDR, int UDP_PORT, KademliaId NODE_ID) {
+        this(IP_ADDR, UDP_PORT, NODE_ID, UdpTransport.shared());
+    }
+
+    // Nodes sharing a transport share its event loops, timer and worker threads
+    public Node(String IP_ADDR, int UDP_PORT, KademliaId NODE_ID, UdpTransport transport) {
+        this(IP_ADDR, UDP_PORT, NODE_ID, transport, new OffHeapStore(STORE_CAPACITY_BYTES));
+    }
+
+    /*
+     * Durable mode: keys are logged under dataDir and the routing table is
+     * snapshotted there, so a node started again on the same directory comes
+     * back with its keys and its contacts.
+     */
+    public Node(String IP_ADDR, int UDP_PORT, KademliaId NODE_ID, File dataDir) {
+        this(IP_ADDR, UDP_PORT, NODE_ID, UdpTransport.shared(), openDurableStore(dataDir), dataDir);
+    }
+
+    public Node(String IP_ADDR, int UDP_PORT, KademliaId NODE_ID, UdpTransport transport, LocalStore localStore) {
+        this(IP_ADDR, UDP_PORT, NODE_ID, transport, localStore, null);
+    }
+
+    public Node(String IP_ADDR, int UDP_PORT, KademliaId NODE_ID, UdpTransport transport, LocalStore localStore, File dataDir) {
         node_information = new Triplet(IP_ADDR, UDP_PORT, NODE_ID);
-        hashTable = new ConcurrentHashMap<>();
-        routingTable = new ConcurrentHashMap<>();
+        this.localStore = localStore;
+        this.dataDir = dataDir;
+        routingTable = new RoutingTable(NODE_ID, K_BUCKET_SIZE);
+        this.transport = transport;
+        requestDispatcher = new RequestDispatcher(transport.workers(), MAX_REQUESTS_IN_FLIGHT);
         startUDPServer();
-        startPingScheduler();
+        if (dataDir != null) {
+            warmRestart();
+            startSnapshotScheduler();
+        }
+        startLivenessSweeps();
+        startBucketRefresh();
+    }
+
+    private static LocalStore openDurableStore(File dataDir) {
+        try {
+            return new DurableStore(new File(dataDir, "store"), STORE_CAPACITY_BYTES);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to open the key store in " + dataDir, e);
+        }
     }
 
     private void startUDPServer() {
-        new Thread(() -> {
-            try {
-                socket = new DatagramSocket(node_information.getUDP_PORT());
-                byte[] buffer = new byte[BUFFER_SIZE];
-                while (!Thread.currentThread().isInterrupted() && !socket.isClosed()) {
-                    try {
-                        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-                        socket.receive(packet);
-                        handleIncomingPacket(packet);
-                    } catch (SocketException e) {
-                        // Socket closed, break the loop
-                        break;
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+        try {
+            // Bind before returning so RPCs can be issued as soon as the node is constructed
+            endpoint = transport.bind(node_information.getUDP_PORT(), (packet, sender) -> {
+                try {
+                    handleIncomingPacket(packet, sender);
+                } catch (IOException e) {
+                    e.printStackTrace();
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
+            });
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to bind UDP port " + node_information.getUDP_PORT(), e);
+        }
+        rpc = new RpcClient(endpoint, transport.scheduler());
+    }
+    /*
+     * Reloads the contacts saved by a previous run and pings them all at once.
+     * Contacts enter the routing table as their PONGs arrive, and we return
+     * as soon as a full bucket's worth has answered (or every ping has
+     * finished), so a node with live contacts can route after about one
+     * round trip. Late answers keep filling the table in the background.
+     */
+    private void warmRestart() {
+        List<Triplet> savedContacts;
+        try {
+            savedContacts = RoutingSnapshot.load(new File(dataDir, ROUTING_SNAPSHOT_FILE));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        if (savedContacts.isEmpty()) {
+            return;
+        }
+
+        int needed = Math.min(K_BUCKET_SIZE, savedContacts.size());
+        AtomicInteger answered = new AtomicInteger();
+        AtomicInteger finished = new AtomicInteger();
+        CompletableFuture<Void> ready = new CompletableFuture<>();
+
+        for (Triplet contact : savedContacts) {
+            rpc.send(contact,
+                    transactionId -> WireCodec.encode(Message.PING, transactionId, node_information),
+                    WARM_RESTART_TIMEOUT_MILLIS)
+                    .whenComplete((response, error) -> {
+                        // The reply path has already added a responding contact to the routing table
+                        if (response != null && response.type == Message.PONG) {
+                            answered.incrementAndGet();
+                        }
+                        if (answered.get() >= needed || finished.incrementAndGet() == savedContacts.size()) {
+                            ready.complete(null);
+                        }
+                    });
+        }
+
+        try {
+            ready.get(WARM_RESTART_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            // Route with whatever answered in time
+        }
+        System.out.println("Node " + node_information.getNODE_ID().toShortHex() + " restarted with " +
+                routingTable.size() + " of " + savedContacts.size() + " saved contacts alive");
+    }
+
+    private void startSnapshotScheduler() {
+        snapshotTask = transport.scheduler().scheduleAtFixedRate(() -> {
+            // File writes, keep them off the shared timer thread
+            transport.workers().execute(this::saveRoutingSnapshot);
+        }, ROUTING_SNAPSHOT_INTERVAL_SECONDS, ROUTING_SNAPSHOT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private void saveRoutingSnapshot() {
+        try {
+            RoutingSnapshot.save(new File(dataDir, ROUTING_SNAPSHOT_FILE), routingTable.contacts());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void startBucketRefresh() {
+        refreshTask = transport.scheduler().scheduleAtFixedRate(() -> {
+            // Lookups block on replies, keep them off the shared timer thread
+            transport.workers().execute(() -> {
+                try {
+                    refreshBuckets();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+        }, BUCKET_REFRESH_TICK_SECONDS, BUCKET_REFRESH_TICK_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /*
+     * Kademlia bucket refresh. Every bucket that hasn't had a lookup into
+     * its range for BUCKET_REFRESH_SECONDS gets one for a random ID in that
+     * range, which fills it with whatever nodes live there. Buckets closer
+     * to us than our nearest contact are skipped, no node is known to live
+     * there and the lookups for the buckets around them would find any that
+     * did. At most BUCKET_REFRESH_BUDGET lookups run per call, the longest
+     * idle buckets first, all at once. Returns the number of buckets refreshed.
+     */
+    public int refreshBuckets() {
+        int nearest = routingTable.lowestNonEmptyBucket();
+        if (nearest < 0) {
+            return 0; // Nothing to route through yet
+        }
+
+        long now = System.currentTimeMillis();
+        long idleMillis = TimeUnit.SECONDS.toMillis(BUCKET_REFRESH_SECONDS);
+        List<Integer> idle = new ArrayList<>();
+        for (int index = nearest; index < BUCKET_COUNT; index++) {
+            if (now - bucketLookups.get(index) >= idleMillis) {
+                idle.add(index);
             }
-        }).start();
+        }
+        // Longest idle first, and among never-refreshed buckets the far ones, which cover the most nodes
+        idle.sort((a, b) -> bucketLookups.get(a) != bucketLookups.get(b)
+                ? Long.compare(bucketLookups.get(a), bucketLookups.get(b))
+                : Integer.compare(b, a));
+
+        List<CompletableFuture<Void>> lookups = new ArrayList<>();
+        for (int index : idle.subList(0, Math.min(idle.size(), BUCKET_REFRESH_BUDGET))) {
+            KademliaId target = node_information.getNODE_ID().randomWithPrefix(BUCKET_COUNT - 1 - index, ThreadLocalRandom.current());
+            lookups.add(CompletableFuture.runAsync(() -> findNode(target), transport.workers()));
+        }
+        CompletableFuture.allOf(lookups.toArray(new CompletableFuture<?>[0])).join();
+        return lookups.size();
     }
-    private void startPingScheduler() {
-        scheduler.scheduleAtFixedRate(() -> {
+
+    private void startLivenessSweeps() {
+        // Sweeps never block, they can run on the shared timer thread
+        livenessTask = transport.scheduler().scheduleAtFixedRate(() -> {
             try {
-                sendPingKClosest();
+                sweepLiveness();
             } catch (Exception e) {
                 e.printStackTrace();
             }
-        }, 0, 30, TimeUnit.SECONDS); // Runs every 10 seconds
+        }, LIVENESS_SWEEP_SECONDS, LIVENESS_SWEEP_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /*
+     * Checks on the routing table, every bucket rather than just our own
+     * neighbourhood. Any message from a contact proves it is alive, so only
+     * contacts silent for STALE_CONTACT_SECONDS are pinged, the stalest
+     * first and at most LIVENESS_PROBE_BUDGET per sweep, all at once. A
+     * contact that doesn't answer is handed to the failure detector. The
+     * returned future completes when every ping has been answered or has
+     * timed out.
+     */
+    public CompletableFuture<Void> sweepLiveness() {
+        long staleMillis = TimeUnit.SECONDS.toMillis(STALE_CONTACT_SECONDS);
+        List<Triplet> stale = new ArrayList<>();
+        Map<KademliaId, Long> silence = new HashMap<>();
+        for (Triplet contact : routingTable.contacts()) {
+            long millis = failureDetector.millisSinceHeard(contact.getNODE_ID());
+            if (millis >= staleMillis) {
+                stale.add(contact);
+                silence.put(contact.getNODE_ID(), millis);
+            }
+        }
+        stale.sort((a, b) -> Long.compare(silence.get(b.getNODE_ID()), silence.get(a.getNODE_ID())));
+
+        List<CompletableFuture<Message>> probes = new ArrayList<>();
+        for (Triplet contact : stale.subList(0, Math.min(stale.size(), LIVENESS_PROBE_BUDGET))) {
+            probes.add(rpc.send(contact,
+                    transactionId -> WireCodec.encode(Message.PING, transactionId, node_information),
+                    2000) // 2-second limit, retransmissions included
+                    .whenComplete((response, error) -> {
+                        // A PONG has already refreshed the contact on its way in
+                        if (response == null || response.type != Message.PONG) {
+                            reportUnresponsive(contact);
+                        }
+                    }));
+        }
+        return CompletableFuture.allOf(probes.toArray(new CompletableFuture<?>[0])).exceptionally(error -> null);
     }
-    private void handleIncomingPacket(DatagramPacket packet) throws IOException {
-        String message = new String(packet.getData(), 0, packet.getLength());
-        InetAddress senderAddress = packet.getAddress();
-        int senderPort = packet.getPort();
+    // Runs on an event-loop thread, anything that can block is handed to the transport's workers
+    private void handleIncomingPacket(ByteBuffer packet, InetSocketAddress senderAddress) throws IOException {
+        Message message = WireCodec.decode(packet);
 
-        if (message.startsWith("PING")) {
-            // Parse the incoming PING message to extract node information
-            String[] parts = message.split(" ");
-            String incomingIP = parts[1];
-            int incomingPort = Integer.parseInt(parts[2]);
-            int incomingNodeID = Integer.parseInt(parts[3]);
+        // Whatever it is, the sender was alive to send it
+        failureDetector.heartbeat(message.sender.getNODE_ID());
 
-            // Create a new Node object with the received information
-            Triplet incomingNodeInfo = new Triplet(incomingIP, incomingPort, incomingNodeID);
+        if (isReply(message.type)) {
+            // Any reply proves the sender is alive, refresh its place in the routing table
+            addToRoutingTable(message.sender);
 
+            // Replies go back to whichever request is waiting on this transaction
+            rpc.complete(message);
+        }
+        else if (message.type == Message.PING) {
             // Add the node to routing table
-            addToRoutingTable(incomingNodeInfo);
+            addToRoutingTable(message.sender);
 
             // Send PONG response
-            String response = "PONG" + " " + node_information.getIP_ADDR() + " " + node_information.getUDP_PORT() + " " + node_information.getNODE_ID();
-            DatagramPacket pongPacket = new DatagramPacket(response.getBytes(), response.length(), senderAddress, senderPort);
-            socket.send(pongPacket);
-        }
-        // Add this to your handleIncomingPacket method
-        else if (message.startsWith("FIND_NODE")) {
-            String[] parts = message.split(" ");
-            int targetNodeId = Integer.parseInt(parts[1]);
-            String callerIP = parts[2];
-            int callerPort = Integer.parseInt(parts[3]);
-            int callerNodeID = Integer.parseInt(parts[4]);
-
+            ByteBuffer response = WireCodec.encode(Message.PONG, message.transactionId, node_information);
+            endpoint.send(response, senderAddress);
+        }
+        else if (message.type == Message.FIND_NODE) {
             // Add the sender to our routing table
-            Triplet callerNodeInfo = new Triplet(callerIP, callerPort, callerNodeID);
-            addToRoutingTable(callerNodeInfo);
+            addToRoutingTable(message.sender);
 
             // Find k closest nodes to the target node ID
-            List<Triplet> closestNodes = findKClosestNodesForKeyFromSelf(targetNodeId, K_BUCKET_SIZE);
+            List<Triplet> closestNodes = findKClosestNodesForKeyFromSelf(message.target, K_BUCKET_SIZE);
 
-            StringBuilder responseBuilder = new StringBuilder("CLOSEST_NODES");
-            for (Triplet node : closestNodes) {
-                responseBuilder.append(" ").append(node.getIP_ADDR())
-                        .append(" ").append(node.getUDP_PORT())
-                        .append(" ").append(node.getNODE_ID());
-            }
+            ByteBuffer response = WireCodec.encodeClosestNodes(message.transactionId, node_information, closestNodes);
+            endpoint.send(response, senderAddress);
+        }
+        else if (message.type == Message.FIND_NEIGHBOURS) {
+            addToRoutingTable(message.sender);
+
+            // A joining node seeding its table, hand over our contacts around it in one reply
+            List<Triplet> closestNodes = findKClosestNodesForKeyFromSelf(message.sender.getNODE_ID(),
+                    Math.min(message.wanted, WireCodec.MAX_CONTACTS));
 
-            String response = responseBuilder.toString();
-            DatagramPacket responsePacket = new DatagramPacket(
-                    response.getBytes(), response.length(),
-                    senderAddress, senderPort
-            );
-            socket.send(responsePacket);
+            ByteBuffer response = WireCodec.encodeClosestNodes(message.transactionId, node_information, closestNodes);
+            endpoint.send(response, senderAddress);
         }
-        else if (message.startsWith("FIND_KEY")) {
-            String[] parts = message.split(" ");
-            int searchKey = Integer.parseInt(parts[1]);
-            String callerIP = parts[2];
-            int callerPort = Integer.parseInt(parts[3]);
-            int callerNodeID = Integer.parseInt(parts[4]);
+        else if (message.type == Message.PULL_KEYS) {
+            addToRoutingTable(message.sender);
 
-            Triplet callerNodeInfo = new Triplet(callerIP, callerPort, callerNodeID);
-            addToRoutingTable(callerNodeInfo);
+            // Acknowledged keys are removed from the store, which may wait on the durable log
+            boolean dispatched = requestDispatcher.dispatch(() -> {
+                try {
+                    handlePullKeys(message, senderAddress);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
+
+            if (!dispatched) {
+                // Too busy, the joining node stops pulling from us and our copies stay put
+                List<Triplet> closestNodes = findKClosestNodesToSelf(K_BUCKET_SIZE);
 
-            String hash = generateSHA1(String.valueOf(searchKey));
+                ByteBuffer response = WireCodec.encodeClosestNodes(message.transactionId, node_information, closestNodes);
+                endpoint.send(response, senderAddress);
+            }
+        }
+        else if (message.type == Message.FIND_KEY) {
+            addToRoutingTable(message.sender);
 
-            // Check if we have the key locally
-            if (hashTable.containsKey(hash)) {
+            // Check if we have the key locally, or know who does from an earlier lookup
+            Triplet holder = localStore.contains(message.keyId) ? node_information : locationCache.get(message.keyId);
+            if (holder != null) {
                 // We found the key, send FOUND_KEY response
-                String response = "FOUND_KEY " + node_information.getNODE_ID();
-                DatagramPacket responsePacket = new DatagramPacket(
-                        response.getBytes(), response.length(),
-                        senderAddress, senderPort
-                );
-                socket.send(responsePacket);
+                ByteBuffer response = WireCodec.encodeFoundKey(message.transactionId, node_information, holder);
+                endpoint.send(response, senderAddress);
             } else {
-                // We don't have the key, send our k-closest nodes
-                List<Triplet> closestNodes = findKClosestNodesToSelf(K_BUCKET_SIZE);
+                // We don't have the key, send our k-closest nodes to it so the lookup can carry on
+                List<Triplet> closestNodes = findKClosestNodesForKeyFromSelf(message.keyId, K_BUCKET_SIZE);
 
-                StringBuilder responseBuilder = new StringBuilder("CLOSEST_NODES");
-                for (Triplet node : closestNodes) {
-                    responseBuilder.append(" ").append(node.getIP_ADDR())
-                            .append(" ").append(node.getUDP_PORT())
-                            .append(" ").append(node.getNODE_ID());
-                }
+                ByteBuffer response = WireCodec.encodeClosestNodes(message.transactionId, node_information, closestNodes);
+                endpoint.send(response, senderAddress);
+            }
+        }
+        else if (message.type == Message.FIND_KEYS) {
+            addToRoutingTable(message.sender);
 
-                String response = responseBuilder.toString();
-                DatagramPacket responsePacket = new DatagramPacket(
-                        response.getBytes(), response.length(),
-                        senderAddress, senderPort
-                );
-                socket.send(responsePacket);
+            // Answer for every key at once, the requester runs a full lookup for any key nobody held
+            boolean[] held = new boolean[message.keyIds.size()];
+            for (int i = 0; i < held.length; i++) {
+                held[i] = localStore.contains(message.keyIds.get(i));
             }
+
+            ByteBuffer response = WireCodec.encodeFoundKeys(message.transactionId, node_information, held);
+            endpoint.send(response, senderAddress);
         }
-        else if (message.startsWith("STORE_KEY")) {
-            String[] parts = message.split(" ");
-            int key = Integer.parseInt(parts[1]);
-            String callerIP = parts[2];
-            int callerPort = Integer.parseInt(parts[3]);
-            int callerNodeID = Integer.parseInt(parts[4]);
+        else if (message.type == Message.STORE_KEY) {
+            addToRoutingTable(message.sender);
 
-            Triplet callerNodeInfo = new Triplet(callerIP, callerPort, callerNodeID);
-            addToRoutingTable(callerNodeInfo);
+            // Storing may split the table, which waits on replies delivered by this thread
+            boolean dispatched = !leaving && requestDispatcher.dispatch(() -> {
+                try {
+                    handleStoreKey(message, senderAddress);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            });
 
-            boolean stored = storeKey(key);
+            if (!dispatched) {
+                // Too busy or leaving, point the sender at our k-closest nodes like a refused store
+                List<Triplet> closestNodes = findKClosestNodesToSelf(K_BUCKET_SIZE);
 
-            if(stored) {
-                String response = "STORED_KEY " + key + " NODE_ID " + node_information.getNODE_ID();
-                DatagramPacket responsePacket = new DatagramPacket(
-                        response.getBytes(), response.length(),
-                        senderAddress, senderPort
-                );
-                socket.send(responsePacket);
+                ByteBuffer response = WireCodec.encodeClosestNodes(message.transactionId, node_information, closestNodes);
+                endpoint.send(response, senderAddress);
             }
-            else {
-                // If we can't store the key, send our k-closest nodes
-                List<Triplet> closestNodes = findKClosestNodesToSelf(K_BUCKET_SIZE);
+        }
+        else if (message.type == Message.STORE_KEYS) {
+            addToRoutingTable(message.sender);
 
-                StringBuilder responseBuilder = new StringBuilder("CLOSEST_NODES");
-                for (Triplet node : closestNodes) {
-                    responseBuilder.append(" ").append(node.getIP_ADDR())
-                            .append(" ").append(node.getUDP_PORT())
-                            .append(" ").append(node.getNODE_ID());
+            // Puts may wait on the durable log, keep them off the event loop
+            boolean dispatched = !leaving && requestDispatcher.dispatch(() -> {
+                try {
+                    handleStoreKeys(message, senderAddress);
+                } catch (IOException e) {
+                    e.printStackTrace();
                 }
+            });
+
+            if (!dispatched) {
+                // Too busy or leaving, the sending node tries our k-closest nodes instead
+                List<Triplet> closestNodes = findKClosestNodesToSelf(K_BUCKET_SIZE);
 
-                String response = responseBuilder.toString();
-                DatagramPacket responsePacket = new DatagramPacket(
-                        response.getBytes(), response.length(),
-                        senderAddress, senderPort
-                );
-                socket.send(responsePacket);
+                ByteBuffer response = WireCodec.encodeClosestNodes(message.transactionId, node_information, closestNodes);
+                endpoint.send(response, senderAddress);
             }
         }
-        else if (message.startsWith("GOODBYE")) {
-            String[] parts = message.split(" ");
-            String callerIP = parts[1];
-            int callerPort = Integer.parseInt(parts[2]);
-            int callerNodeID = Integer.parseInt(parts[3]);
+        else if (message.type == Message.CACHE_LOCATION) {
+            addToRoutingTable(message.sender);
 
-            // Add the sender to our routing table
-            removeFromRoutingTable(callerNodeID);
+            // A requester that walked past us on its way to the key
+            if (!localStore.contains(message.keyId)) {
+                locationCache.put(message.keyId, message.holder, Math.min(message.ttlMillis, LOCATION_CACHE_TTL_MILLIS));
+            }
+        }
+        else if (message.type == Message.GOODBYE) {
+            // Remove the sender from our routing table
+            removeFromRoutingTable(message.sender.getNODE_ID());
+            failureDetector.remove(message.sender.getNODE_ID());
         }
     }
 
-    public void sendPing(Node targetNode) {
-        try {
-            DatagramSocket pingSocket = new DatagramSocket();
-            String message = "PING" + " " + node_information.getIP_ADDR() + " " + node_information.getUDP_PORT() + " " + node_information.getNODE_ID();
-            byte[] buffer = message.getBytes();
-            DatagramPacket packet = new DatagramPacket(buffer, buffer.length,
-                    InetAddress.getByName(targetNode.getNodeInformation().getIP_ADDR()), targetNode.getNodeInformation().getUDP_PORT());
-            pingSocket.send(packet);
+    private void handleStoreKey(Message message, InetSocketAddress senderAddress) throws IOException {
+        boolean stored = storeValue(message.keyId, message.value, false);
 
-            pingSocket.setSoTimeout(2000); // 2-second timeout
-            byte[] responseBuffer = new byte[1024];
-            DatagramPacket responsePacket = new DatagramPacket(responseBuffer, responseBuffer.length);
+        if(stored) {
+            ByteBuffer response = WireCodec.encode(Message.STORED_KEY, message.transactionId, node_information, message.keyId);
+            endpoint.send(response, senderAddress);
+        }
+        else {
+            // If we can't store the key, send our k-closest nodes
+            List<Triplet> closestNodes = findKClosestNodesToSelf(K_BUCKET_SIZE);
 
-            pingSocket.receive(responsePacket);
-            String response = new String(responsePacket.getData(), 0, responsePacket.getLength()).trim();
+            ByteBuffer response = WireCodec.encodeClosestNodes(message.transactionId, node_information, closestNodes);
+            endpoint.send(response, senderAddress);
+        }
+    }
 
-            // Check if response is a valid PONG
-            if (response.equals("PONG " + targetNode.getNodeInformation().getIP_ADDR() + " " + targetNode.getNodeInformation().getUDP_PORT() + " " + targetNode.getNodeInformation().getNODE_ID())) {
-                addToRoutingTable(targetNode.getNodeInformation());
+    /*
+     * Takes what fits of a batch from a splitting node. Unlike a single
+     * store this never starts a split of our own, keys that don't fit are
+     * refused and the reply offers our k-closest nodes to try instead.
+     */
+    private void handleStoreKeys(Message message, InetSocketAddress senderAddress) throws IOException {
+        boolean[] accepted = new boolean[message.keyIds.size()];
+        boolean rejectedAny = false;
+
+        for (int i = 0; i < accepted.length; i++) {
+            KademliaId keyId = message.keyIds.get(i);
+            if (localStore.contains(keyId)) {
+                accepted[i] = true; // Already held, the sender can drop its copy
+            } else if (localStore.putIfRoom(keyId, message.values.get(i))) {
+                accepted[i] = true;
+            } else {
+                rejectedAny = true;
             }
-        } catch (IOException e) {
-            e.printStackTrace();
         }
+
+        List<Triplet> contacts = rejectedAny ? findKClosestNodesToSelf(K_BUCKET_SIZE) : Collections.emptyList();
+        ByteBuffer response = WireCodec.encodeStoreKeysReply(message.transactionId, node_information, accepted, contacts);
+        endpoint.send(response, senderAddress);
     }
 
-    public void sendPingKClosest() {
-        try (DatagramSocket pingSocket = new DatagramSocket()) {
-            List<Triplet> KClosestNodes = findKClosestNodesToSelf(3);
-            Set<Integer> unresponsiveNodes = new HashSet<>();
-            int maxRetries = 1;
+    /*
+     * Serves a joining node's pull. Keys it acknowledged are dropped here,
+     * provided it is still closer to them than we are, then the next batch
+     * of keys after its cursor that it is closer to goes back. We keep no
+     * state between pulls, the cursor and the acknowledgements say it all.
+     */
+    private void handlePullKeys(Message message, InetSocketAddress senderAddress) throws IOException {
+        KademliaId requesterId = message.sender.getNODE_ID();
+        KademliaId selfId = node_information.getNODE_ID();
+
+        for (KademliaId keyId : message.keyIds) {
+            if (KademliaId.compareDistance(keyId, requesterId, selfId) < 0) {
+                localStore.remove(keyId);
+            }
+        }
 
-            for (Triplet targetNodeInfo : KClosestNodes) {
-                boolean isResponsive = false;
+        List<KademliaId> batchIds = new ArrayList<>();
+        List<byte[]> batchValues = new ArrayList<>();
+        boolean more = false;
+        if (message.more) {
+            // Only the lowest owed keys past the cursor fit in this reply, a heap keeps those (and one
+            // more, to tell whether there are others) without copying and sorting everything we hold
+            PriorityQueue<KademliaId> lowest = new PriorityQueue<>(Comparator.reverseOrder());
+            localStore.forEachKey(keyId -> {
+                if ((message.keyId == null || keyId.compareTo(message.keyId) > 0)
+                        && KademliaId.compareDistance(keyId, requesterId, selfId) < 0) {
+                    lowest.add(keyId);
+                    if (lowest.size() > WireCodec.MAX_PULL_ACKS + 1) {
+                        lowest.poll();
+                    }
+                }
+            });
+            List<KademliaId> owed = new ArrayList<>(lowest);
+            owed.sort(null);
+
+            int payload = 0;
+            for (KademliaId keyId : owed) {
+                byte[] value = localStore.get(keyId);
+                if (value == null) {
+                    continue;
+                }
+                payload += WireCodec.storeKeysEntrySize(value);
+                if (payload > WireCodec.PULLED_KEYS_PAYLOAD || batchIds.size() == WireCodec.MAX_PULL_ACKS) {
+                    more = true;
+                    break;
+                }
+                batchIds.add(keyId);
+                batchValues.add(value);
+            }
+            // Keys removed meanwhile may have left room for ones the heap dropped, the next request picks them up
+            more |= owed.size() > WireCodec.MAX_PULL_ACKS;
+        }
 
-                for (int attempt = 1; attempt <= maxRetries; attempt++) {
-                    try {
-                        // Send PING message
-                        String message = "PING " + node_information.getIP_ADDR() + " " + node_information.getUDP_PORT() + " " + node_information.getNODE_ID();
-                        byte[] buffer = message.getBytes();
-                        DatagramPacket packet = new DatagramPacket(buffer, buffer.length,
-                                InetAddress.getByName(targetNodeInfo.getIP_ADDR()), targetNodeInfo.getUDP_PORT());
+        ByteBuffer response = WireCodec.encodePulledKeys(message.transactionId, node_information, more, batchIds, batchValues);
+        endpoint.send(response, senderAddress);
+    }
 
-                        pingSocket.send(packet);
-                        //System.out.println("Attempt " + attempt + ": Sent PING to Node ID " + targetNodeInfo.getNODE_ID());
+    private static boolean isReply(byte type) {
+        return type == Message.PONG || type == Message.CLOSEST_NODES
+                || type == Message.FOUND_KEY || type == Message.STORED_KEY
+                || type == Message.STORE_KEYS_REPLY || type == Message.FOUND_KEYS
+                || type == Message.PULLED_KEYS;
+    }
 
-                        // Wait for response
-                        pingSocket.setSoTimeout(2000); // 2-second timeout
-                        byte[] responseBuffer = new byte[1024];
-                        DatagramPacket responsePacket = new DatagramPacket(responseBuffer, responseBuffer.length);
 
-                        pingSocket.receive(responsePacket);
-                        String response = new String(responsePacket.getData(), 0, responsePacket.getLength()).trim();
+    /*
+     * Joins the network through one known node. After the bootstrap
+     * answers a ping we look up our own ID, which fills every bucket the
+     * lookup passes through and tells the nodes around us that we exist.
+     * The closest nodes it finds are then each asked for their contacts
+     * nearest to us in a single FIND_NEIGHBOURS reply, all at once, which
+     * fills our own neighbourhood. Buckets further out are refreshed in the
+     * background. Returns false if the bootstrap node didn't answer.
+     */
+    public boolean join(Triplet bootstrap) {
+        try {
+            Message pong = rpc.call(bootstrap,
+                    transactionId -> WireCodec.encode(Message.PING, transactionId, node_information),
+                    2000); // 2-second limit, retransmissions included
+            if (pong == null || pong.type != Message.PONG) {
+                System.out.println("Bootstrap node " + bootstrap.getIP_ADDR() + ":" + bootstrap.getUDP_PORT() + " did not answer");
+                return false;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
 
-                        // Check if response is a valid PONG
-                        if (response.equals("PONG " + targetNodeInfo.getNODE_ID())) {
-                            isResponsive = true;
-                            //System.out.println("Node ID " + targetNodeInfo.getNODE_ID() + " responded with PONG.");
-                            break;
-                        } else {
-                            //System.out.println("Invalid response from Node ID: " + targetNodeInfo.getNODE_ID() + " - Retrying...");
+        List<Triplet> neighbours = findNode(node_information.getNODE_ID());
+
+        List<CompletableFuture<Message>> requests = new ArrayList<>();
+        for (Triplet neighbour : neighbours) {
+            requests.add(rpc.send(neighbour,
+                    transactionId -> WireCodec.encodeFindNeighbours(transactionId, node_information, JOIN_NEIGHBOURS_WANTED),
+                    2000)
+                    .whenComplete((response, error) -> {
+                        if (response != null && response.type == Message.CLOSEST_NODES) {
+                            for (Triplet contact : response.contacts) {
+                                addToRoutingTable(contact);
+                            }
                         }
+                    }));
+        }
+        try {
+            CompletableFuture.allOf(requests.toArray(new CompletableFuture<?>[0])).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // A neighbour didn't answer, the others' contacts are already in
+        }
+
+        transport.workers().execute(() -> {
+            try {
+                refreshBuckets();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        transport.workers().execute(() -> {
+            try {
+                pullOwnedKeys();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+
+        System.out.println("Node " + node_information.getNODE_ID().toShortHex() + " joined with " +
+                routingTable.size() + " contacts in " + routingTable.nonEmptyBuckets() + " buckets");
+        return true;
+    }
+
+    /*
+     * Join-time handoff: takes over, from our nearest neighbours, the keys
+     * that are now closer to us than to them. Each neighbour is pulled from
+     * one batch at a time, so it never sends faster than we store, and every
+     * pull acknowledges the previous batch, after which the neighbour drops
+     * its copies. A key is therefore always held by at least one of the two
+     * and lookups keep working throughout. Neighbours are pulled from in
+     * parallel. Stops early once our store is full. Returns the number of
+     * keys taken over.
+     */
+    public int pullOwnedKeys() {
+        List<CompletableFuture<Integer>> pulls = new ArrayList<>();
+        for (Triplet neighbour : findKClosestNodesToSelf(K_BUCKET_SIZE)) {
+            pulls.add(CompletableFuture.supplyAsync(() -> pullOwnedKeysFrom(neighbour), transport.workers()));
+        }
+
+        int moved = 0;
+        for (CompletableFuture<Integer> pull : pulls) {
+            moved += pull.join();
+        }
+        if (moved > 0) {
+            System.out.println("Node " + node_information.getNODE_ID().toShortHex() + " took over " + moved + " keys from its neighbours");
+        }
+        return moved;
+    }
+
+    private int pullOwnedKeysFrom(Triplet neighbour) {
+        KademliaId cursor = null;
+        List<KademliaId> acks = new ArrayList<>();
+        boolean more = true;
+        int moved = 0;
+
+        try {
+            while (more || !acks.isEmpty()) {
+                List<KademliaId> acknowledged = acks;
+                KademliaId after = cursor;
+                boolean wantMore = more && !localStore.isFull();
+                Message response = rpc.call(neighbour,
+                        transactionId -> WireCodec.encodePullKeys(transactionId, node_information, wantMore, after, acknowledged),
+                        2000); // 2-second limit, retransmissions included
+
+                if (response == null || response.type != Message.PULLED_KEYS) {
+                    break; // Gone or busy, whatever it still holds stays findable there
+                }
+
+                acks = new ArrayList<>();
+                for (int i = 0; i < response.keyIds.size(); i++) {
+                    if (!localStore.putIfRoom(response.keyIds.get(i), response.values.get(i))) {
+                        break;
+                    }
+                    acks.add(response.keyIds.get(i));
+                    moved++;
+                }
+                if (!response.keyIds.isEmpty()) {
+                    cursor = response.keyIds.get(response.keyIds.size() - 1);
+                }
+                more = wantMore && response.more;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return moved;
+    }
 
-                    } catch (SocketTimeoutException e) {
-                        //System.out.println("Attempt " + attempt + ": No response from Node ID " + targetNodeInfo.getNODE_ID());
-                    } catch (IOException e) {
-                        e.printStackTrace();
+    /*
+     * Graceful leave: moves every key we hold to the node that owns it once
+     * we are gone. A lookup of our own ID finds the neighbours that take
+     * over most of our keyspace, the routing table covers the rest. Each
+     * successor gets its keys in STORE_KEYS batches, all of them in flight
+     * at once, and a key is only dropped here once its successor accepted
+     * it. Keys refused or left unanswered, and values too large to share a
+     * datagram, go to the next closest nodes one at a time. Everything must
+     * be settled within HANDOFF_DEADLINE_MILLIS, keys still here by then
+     * leave with us. Returns the number of keys handed off.
+     */
+    public int handOffKeys() {
+        leaving = true;
+        List<KademliaId> keyIds = localStore.keys();
+        if (keyIds.isEmpty()) {
+            return 0;
+        }
+        long deadline = System.currentTimeMillis() + HANDOFF_DEADLINE_MILLIS;
+
+        List<Triplet> neighbours = new ArrayList<>(findNode(node_information.getNODE_ID()));
+        neighbours.removeIf(contact -> contact.getNODE_ID().equals(node_information.getNODE_ID()));
+
+        // Assign every key to the closest node other than us
+        List<byte[]> values = new ArrayList<>(keyIds.size());
+        Map<KademliaId, Triplet> successors = new HashMap<>();
+        Map<KademliaId, List<Integer>> keysBySuccessor = new LinkedHashMap<>();
+        // Keys too large to share a STORE_KEYS datagram, these go out one STORE_KEY at a time
+        List<Integer> singles = new ArrayList<>();
+        for (int index = 0; index < keyIds.size(); index++) {
+            KademliaId keyId = keyIds.get(index);
+            byte[] value = localStore.get(keyId);
+            values.add(value);
+            if (value == null || value.length > WireCodec.MAX_VALUE_SIZE) {
+                continue; // Gone meanwhile, or too large for any datagram
+            }
+            List<Triplet> candidates = successorCandidates(keyId, neighbours);
+            if (candidates.isEmpty()) {
+                break; // We're the only node left
+            }
+            if (WireCodec.storeKeysEntrySize(value) > WireCodec.STORE_KEYS_PAYLOAD) {
+                singles.add(index);
+                continue;
+            }
+            Triplet successor = candidates.get(0);
+            successors.putIfAbsent(successor.getNODE_ID(), successor);
+            keysBySuccessor.computeIfAbsent(successor.getNODE_ID(), id -> new ArrayList<>()).add(index);
+        }
+
+        List<StoreBatch> batches = new ArrayList<>();
+        for (Map.Entry<KademliaId, List<Integer>> entry : keysBySuccessor.entrySet()) {
+            Triplet successor = successors.get(entry.getKey());
+            List<Integer> successorKeys = entry.getValue();
+
+            int start = 0;
+            while (start < successorKeys.size()) {
+                List<Integer> batch = new ArrayList<>();
+                List<KademliaId> batchIds = new ArrayList<>();
+                List<byte[]> batchValues = new ArrayList<>();
+                int payload = 0;
+                while (start < successorKeys.size()) {
+                    int index = successorKeys.get(start);
+                    payload += WireCodec.storeKeysEntrySize(values.get(index));
+                    if (payload > WireCodec.STORE_KEYS_PAYLOAD) {
                         break;
                     }
+                    batch.add(index);
+                    batchIds.add(keyIds.get(index));
+                    batchValues.add(values.get(index));
+                    start++;
                 }
 
-                // If the node never responded, mark it as unresponsive
-                if (!isResponsive) {
-                    //System.out.println("Node ID " + targetNodeInfo.getNODE_ID() + " is unresponsive after " + maxRetries + " attempts. Removing from routing table.");
-                    unresponsiveNodes.add(targetNodeInfo.getNODE_ID());
+                CompletableFuture<Message> reply = rpc.send(successor,
+                        transactionId -> WireCodec.encodeStoreKeys(transactionId, node_information, batchIds, batchValues),
+                        Math.max(1, deadline - System.currentTimeMillis()));
+                batches.add(new StoreBatch(successor, batch, reply));
+            }
+        }
+
+        // Keys a successor took, dropped here all at once so a durable store syncs its log once
+        List<KademliaId> handedOff = new ArrayList<>();
+        // Keys a successor didn't take, and that successor
+        Map<Integer, Triplet> rejected = new LinkedHashMap<>();
+        Set<KademliaId> silentSuccessors = new HashSet<>();
+        for (StoreBatch batch : batches) {
+            awaitStoreBatch(batch, rejected, silentSuccessors);
+            for (int index : batch.keys) {
+                if (!rejected.containsKey(index)) {
+                    handedOff.add(keyIds.get(index));
                 }
             }
+        }
 
-            // Remove unresponsive nodes from the routing table
-            for (Integer nodeId : unresponsiveNodes) {
-                removeFromRoutingTable(nodeId);
+        for (Map.Entry<Integer, Triplet> entry : rejected.entrySet()) {
+            if (System.currentTimeMillis() >= deadline) {
+                break;
+            }
+            KademliaId keyId = keyIds.get(entry.getKey());
+            List<Triplet> candidates = successorCandidates(keyId, neighbours);
+            candidates.removeIf(contact -> contact.getNODE_ID().equals(entry.getValue().getNODE_ID())
+                    || silentSuccessors.contains(contact.getNODE_ID()));
+            if (storeInNodes(keyId, values.get(entry.getKey()), candidates, deadline)) {
+                handedOff.add(keyId);
             }
+        }
 
-        } catch (IOException e) {
-            e.printStackTrace();
+        for (int index : singles) {
+            if (System.currentTimeMillis() >= deadline) {
+                break;
+            }
+            KademliaId keyId = keyIds.get(index);
+            List<Triplet> candidates = successorCandidates(keyId, neighbours);
+            candidates.removeIf(contact -> silentSuccessors.contains(contact.getNODE_ID()));
+            if (storeInNodes(keyId, values.get(index), candidates, deadline)) {
+                handedOff.add(keyId);
+            }
         }
+        localStore.removeAll(handedOff);
+
+        System.out.println("Node " + node_information.getNODE_ID().toShortHex() + " handed off " + handedOff.size() +
+                " of " + keyIds.size() + " keys to " + successors.size() + " nodes");
+        return handedOff.size();
     }
 
-    private List<Triplet> sendFindNodeRequest(Triplet targetNode, int targetNodeId) {
-        List<Triplet> returnedNodes = new ArrayList<>();
-        DatagramSocket findNodeSocket = null;
+    // Nodes other than us that could own the key, closest first
+    private List<Triplet> successorCandidates(KademliaId keyId, List<Triplet> neighbours) {
+        Map<KademliaId, Triplet> candidates = new HashMap<>();
+        for (Triplet contact : neighbours) {
+            candidates.put(contact.getNODE_ID(), contact);
+        }
+        for (Triplet contact : findKClosestNodesForKeyFromSelf(keyId, K_BUCKET_SIZE)) {
+            candidates.putIfAbsent(contact.getNODE_ID(), contact);
+        }
+        List<Triplet> closest = new ArrayList<>(candidates.values());
+        closest.sort(distanceTo(keyId));
+        while (closest.size() > K_BUCKET_SIZE) {
+            closest.remove(closest.size() - 1);
+        }
+        return closest;
+    }
 
+    public void sendPing(Node targetNode) {
+        Triplet targetNodeInfo = targetNode.getNodeInformation();
         try {
-            findNodeSocket = new DatagramSocket();
-            findNodeSocket.setSoTimeout(5000); // Set 5-second timeout
+            Message response = rpc.call(targetNodeInfo,
+                    transactionId -> WireCodec.encode(Message.PING, transactionId, node_information),
+                    2000); // 2-second timeout
 
-            String message = "FIND_NODE " + targetNodeId + " " +
-                    node_information.getIP_ADDR() + " " +
-                    node_information.getUDP_PORT() + " " +
-                    node_information.getNODE_ID();
-
-            byte[] buffer = message.getBytes();
-            DatagramPacket packet = new DatagramPacket(buffer, buffer.length,
-                    InetAddress.getByName(targetNode.getIP_ADDR()),
-                    targetNode.getUDP_PORT());
+            // Check if response is a valid PONG
+            if (response != null && response.type == Message.PONG && response.sender.getNODE_ID().equals(targetNodeInfo.getNODE_ID())) {
+                addToRoutingTable(targetNodeInfo);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-            try {
-                findNodeSocket.send(packet);
-                //System.out.println("Sent FIND_NODE request to " + targetNode.getIP_ADDR() + " " + targetNodeId);
-
-                // Prepare to receive response
-                byte[] responseBuffer = new byte[BUFFER_SIZE];
-                DatagramPacket responsePacket = new DatagramPacket(responseBuffer, responseBuffer.length);
-                findNodeSocket.receive(responsePacket); // Blocking call
-
-                // If response is received, parse and return nodes
-                String response = new String(responsePacket.getData(), 0, responsePacket.getLength());
-                if (response.startsWith("CLOSEST_NODES")) {
-                    String[] parts = response.split(" ");
-                    for (int i = 1; i < parts.length; i += 3) {
-                        if (i + 2 < parts.length) {
-                            String ip = parts[i];
-                            int port = Integer.parseInt(parts[i + 1]);
-                            int nodeId = Integer.parseInt(parts[i + 2]);
-                            Triplet nodeInfo = new Triplet(ip, port, nodeId);
+    // Completes with the contacts returned by the target, or null if it did not answer
+    private CompletableFuture<List<Triplet>> sendFindNodeRequest(Triplet targetNode, KademliaId targetNodeId) {
+        //System.out.println("Sent FIND_NODE request to " + targetNode.getIP_ADDR() + " " + targetNodeId);
+        return rpc.send(targetNode,
+                transactionId -> WireCodec.encode(Message.FIND_NODE, transactionId, node_information, targetNodeId),
+                5000) // 5-second timeout
+                .handle((response, error) -> {
+                    // If response is received, return the nodes it carries
+                    if (response != null && response.type == Message.CLOSEST_NODES) {
+                        List<Triplet> returnedNodes = new ArrayList<>();
+                        for (Triplet nodeInfo : response.contacts) {
                             returnedNodes.add(nodeInfo);
                             addToRoutingTable(nodeInfo);
                         }
+                        return returnedNodes; // Successful response, return nodes
                     }
-                    return returnedNodes; // Successful response, return nodes
-                }
-            }
-            catch (SocketTimeoutException e) {
-                //System.err.println("Timeout: No response received from " + targetNode.getIP_ADDR());
-            }
 
-            // If all retries fail, fallback mechanism
-            //System.err.println("All attempts failed. Node " + targetNode.getIP_ADDR() + " is unresponsive.");
-            removeFromRoutingTable(targetNodeId); // Fallback method (implement as needed)
+                    // No answer even after retransmissions, the queried node may be down
+                    reportUnresponsive(targetNode);
+                    return null;
+                });
+    }
 
-        } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            if (findNodeSocket != null && !findNodeSocket.isClosed()) {
-                findNodeSocket.close();
+    // One step of a key lookup, the request itself is added to sent so the lookup can cancel it
+    private CompletableFuture<LookupReply> sendFindKeyRequest(Triplet targetNode, KademliaId keyId,
+                                                              List<CompletableFuture<Message>> sent) {
+        long sentAt = System.nanoTime();
+        CompletableFuture<Message> request = rpc.send(targetNode,
+                transactionId -> WireCodec.encode(Message.FIND_KEY, transactionId, node_information, keyId),
+                5000); // 5-second timeout
+        sent.add(request);
+
+        return request.handle((response, error) -> {
+            if (response == null) {
+                if (!(error instanceof CancellationException)) {
+                    reportUnresponsive(targetNode);
+                }
+                return new LookupReply(targetNode, null, null);
             }
-        }
+            findKeyLatency.record(System.nanoTime() - sentAt);
 
-        return returnedNodes;
+            if (response.type == Message.FOUND_KEY) {
+                return new LookupReply(targetNode, Collections.emptyList(), response.holder);
+            }
+            if (response.type == Message.CLOSEST_NODES) {
+                for (Triplet nodeInfo : response.contacts) {
+                    addToRoutingTable(nodeInfo);
+                }
+                return new LookupReply(targetNode, response.contacts, null);
+            }
+            return new LookupReply(targetNode, null, null);
+        });
     }
 
-    private int sendFindKey(Triplet targetNode, int searchKey) {
+    // Returns the node holding the key, as far as the target knows, or null if it doesn't
+    private Triplet sendFindKey(Triplet targetNode, KademliaId keyId) {
         try {
-            DatagramSocket findKeySocket = new DatagramSocket();
-            String message = "FIND_KEY " + searchKey + " " + node_information.getIP_ADDR() + " " +
-                    node_information.getUDP_PORT() + " " + node_information.getNODE_ID();
-            byte[] buffer = message.getBytes();
-            DatagramPacket packet = new DatagramPacket(buffer, buffer.length,
-                    InetAddress.getByName(targetNode.getIP_ADDR()),
-                    targetNode.getUDP_PORT());
-            findKeySocket.send(packet);
-
-            // Set timeout for response
-            findKeySocket.setSoTimeout(5000); // 5 seconds timeout
-
-            // Prepare to receive response
-            byte[] responseBuffer = new byte[BUFFER_SIZE];
-            DatagramPacket responsePacket = new DatagramPacket(responseBuffer, responseBuffer.length);
-            findKeySocket.receive(responsePacket);
-
-            String response = new String(responsePacket.getData(), 0, responsePacket.getLength());
-            findKeySocket.close();
+            Message response = rpc.call(targetNode,
+                    transactionId -> WireCodec.encode(Message.FIND_KEY, transactionId, node_information, keyId),
+                    5000); // 5 seconds timeout
 
             // Parse the response
-            if (response.startsWith("FOUND_KEY")) {
-                String[] parts = response.split(" ");
-                int nodeID = Integer.parseInt(parts[1]);
-                return nodeID;  // Return the ID of the node that has the key
-            } else if (response.startsWith("CLOSEST_NODES")) {
-                // This would be processed by the findKey method
-                return -2;  // Indicating we received closest nodes
+            if (response != null && response.type == Message.FOUND_KEY) {
+                return response.holder;  // The target itself, or the holder it has cached
             }
 
-            return -1; // Key not found
+            // No reply, or CLOSEST_NODES which findKey doesn't follow
+            return null;
 
         } catch (IOException e) {
             e.printStackTrace();
-            return -1;
+            return null;
         }
     }
 
     private boolean sendSplitHashTableRequest() {
+        // Only one split at a time, a full node's stores meanwhile go to the closest node
+        if (!splitInProgress.compareAndSet(false, true)) {
+            return true;
+        }
+
+        try {
+            return splitHashTable();
+        } finally {
+            splitInProgress.set(false);
+        }
+    }
+
+    /*
+     * Moves half of our keys to our closest nodes in STORE_KEYS batches, the
+     * keys spread evenly over the nodes and packed as many to a datagram as
+     * fit, so a split takes about one round trip per node. A key is only
+     * removed here once its new node has accepted it, so it stays findable
+     * throughout and the node keeps serving stores and lookups meanwhile.
+     */
+    private boolean splitHashTable() {
         try {
-            Set<Integer> visitedNodes = new HashSet<>();
+            Set<KademliaId> visitedNodes = new HashSet<>();
             visitedNodes.add(node_information.getNODE_ID());
 
             List<Triplet> closestNodes = findKClosestNodesToSelf(K_BUCKET_SIZE);
 
             // Keep track of available nodes for round-robin distribution
             List<Triplet> availableNodes = new ArrayList<>(closestNodes);
+            for (Triplet node : availableNodes) {
+                visitedNodes.add(node.getNODE_ID());
+            }
             if (availableNodes.isEmpty()) {
                 System.err.println("No nodes available for distribution");
                 return false;
             }
 
             // Create a list of keys to distribute
-            List<String> keysToDistribute = new ArrayList<>();
-            int keysToSplit = hashTable.size() / 2;
-            List<String> allKeys = new ArrayList<>(hashTable.keySet());
+            List<KademliaId> keysToDistribute = new ArrayList<>();
+            List<KademliaId> allKeys = localStore.keys();
+            int keysToSplit = allKeys.size() / 2;
             Collections.shuffle(allKeys);
             for (int i = 0; i < keysToSplit && i < allKeys.size(); i++) {
                 keysToDistribute.add(allKeys.get(i));
@@ -417,16 +976,8 @@ public class Node {
 
             System.out.println("Keys to Distribute: " + keysToDistribute.size() + " keys");
 
-            DatagramSocket splitHashTableSocket = new DatagramSocket();
-            splitHashTableSocket.setSoTimeout(1000);
-
-            isLocked = true;
-
-            // Track successfully stored keys
-            List<String> successfullyStoredKeys = new ArrayList<>();
-
-            // Track nodes that have been found to be unreachable
-            Set<Integer> unreachableNodes = new HashSet<>();
+            // Nodes that didn't answer or have no more room during this split
+            Set<KademliaId> unreachableNodes = new HashSet<>();
 
             // Current node index for round-robin
             int currentNodeIndex = 0;
@@ -445,110 +996,104 @@ public class Node {
                 currentNodeIndex = currentNodeIndex % availableNodes.size();
                 Triplet targetNodeInfo = availableNodes.get(currentNodeIndex);
 
-                System.out.println("Node: "+ node_information.getNODE_ID() + " Send split to node (ID: " +
-                        targetNodeInfo.getNODE_ID() + ")");
-
-                // Get the next key to distribute
-                String hash = keysToDistribute.get(0);
-                Integer key = hashTable.get(hash);
-
-                if (key == null) {
-                    // Key no longer exists in hash table, remove from distribution list
-                    keysToDistribute.remove(0);
+                // This node's share of the remaining keys, as many as fit in one datagram
+                int share = (keysToDistribute.size() + availableNodes.size() - 1) / availableNodes.size();
+                List<KademliaId> batchIds = new ArrayList<>();
+                List<byte[]> batchValues = new ArrayList<>();
+                int payload = 0;
+                Iterator<KademliaId> keys = keysToDistribute.iterator();
+                while (keys.hasNext() && batchIds.size() < share) {
+                    KademliaId hash = keys.next();
+                    byte[] value = localStore.get(hash);
+                    if (value == null) {
+                        // Key no longer exists in hash table, remove from distribution list
+                        keys.remove();
+                        continue;
+                    }
+                    if (WireCodec.storeKeysEntrySize(value) > WireCodec.STORE_KEYS_PAYLOAD) {
+                        // Stored locally and too large for a datagram, it has to stay here
+                        keys.remove();
+                        continue;
+                    }
+                    payload += WireCodec.storeKeysEntrySize(value);
+                    if (payload > WireCodec.STORE_KEYS_PAYLOAD) {
+                        break;
+                    }
+                    batchIds.add(hash);
+                    batchValues.add(value);
+                }
+                if (batchIds.isEmpty()) {
                     continue;
                 }
 
-                // Send STORE_KEY request
-                String message = "STORE_KEY " + key + " " + node_information.getIP_ADDR() + " " +
-                        node_information.getUDP_PORT() + " " + node_information.getNODE_ID();
-                byte[] buffer = message.getBytes();
-
-                DatagramPacket packet = new DatagramPacket(buffer, buffer.length,
-                        InetAddress.getByName(targetNodeInfo.getIP_ADDR()),
-                        targetNodeInfo.getUDP_PORT());
-
-                try {
-                    splitHashTableSocket.send(packet);
-
-                    byte[] responseBuffer = new byte[BUFFER_SIZE];
-                    DatagramPacket responsePacket = new DatagramPacket(responseBuffer, responseBuffer.length);
-                    splitHashTableSocket.receive(responsePacket);
+                System.out.println("Node: "+ node_information.getNODE_ID() + " Send split of " + batchIds.size() +
+                        " keys to node (ID: " + targetNodeInfo.getNODE_ID() + ")");
 
-                    String response = new String(responsePacket.getData(), 0, responsePacket.getLength());
+                Message response = rpc.call(targetNodeInfo,
+                        transactionId -> WireCodec.encodeStoreKeys(transactionId, node_information, batchIds, batchValues),
+                        1000);
 
-                    if (response.startsWith("STORED_KEY")) {
-                        // Key stored successfully
-                        successfullyStoredKeys.add(hash);
-                        keysToDistribute.remove(0);
-                        // Move to next node for next key
-                        currentNodeIndex++;
-                    }
-                    else if (response.startsWith("CLOSEST_NODES")) {
-                        // Process closest nodes response to find more potential nodes
-                        String[] parts = response.split(" ");
-                        System.out.print("CLOSEST NODES SPLIT: ");
-
-                        for (int i = 1; i < parts.length; i += 3) {
-                            if (i + 2 < parts.length) {
-                                String ip = parts[i];
-                                int port = Integer.parseInt(parts[i + 1]);
-                                int nodeId = Integer.parseInt(parts[i + 2]);
-                                System.out.println(port + " " + nodeId);
-
-                                if (!visitedNodes.contains(nodeId) && !unreachableNodes.contains(nodeId)) {
-                                    Triplet nodeInfo = new Triplet(ip, port, nodeId);
-                                    availableNodes.add(nodeInfo);
-                                    visitedNodes.add(nodeId);
-                                    addToRoutingTable(nodeInfo);
-                                }
-                            }
-                        }
-                        // Try the next node with the same key
-                        currentNodeIndex++;
-                    }
-                } catch (SocketTimeoutException e) {
+                if (response == null) {
                     System.err.println("Timeout: No response from " + targetNodeInfo.getIP_ADDR() + " " + targetNodeInfo.getNODE_ID());
-                    // Mark this node as unreachable
+                    // Mark this node as unreachable, its keys go to the next node
                     unreachableNodes.add(targetNodeInfo.getNODE_ID());
-                    // Try the next node with the same key
-                    currentNodeIndex++;
                 }
-            }
+                else if (response.type == Message.STORE_KEYS_REPLY && response.accepted.length == batchIds.size()) {
+                    boolean rejectedAny = false;
+                    for (int i = 0; i < batchIds.size(); i++) {
+                        if (response.accepted[i]) {
+                            // Safe to drop our copy now that the new node holds the key
+                            localStore.remove(batchIds.get(i));
+                            keysToDistribute.remove(batchIds.get(i));
+                        } else {
+                            rejectedAny = true;
+                        }
+                    }
 
-            // Remove successfully stored keys from our hash table
-            for (String hash : successfullyStoredKeys) {
-                hashTable.remove(hash);
+                    if (rejectedAny) {
+                        // The node is full, don't offer it more during this split but try the nodes it knows
+                        unreachableNodes.add(targetNodeInfo.getNODE_ID());
+                        offerSplitContacts(response.contacts, availableNodes, visitedNodes, unreachableNodes);
+                    }
+                }
+                else if (response.type == Message.CLOSEST_NODES) {
+                    // The node was too busy to take the batch
+                    unreachableNodes.add(targetNodeInfo.getNODE_ID());
+                    offerSplitContacts(response.contacts, availableNodes, visitedNodes, unreachableNodes);
+                }
+                currentNodeIndex++;
             }
 
-            splitHashTableSocket.close();
-            isLocked = false;
-
             if(keysToDistribute.size() == keysToSplit) {
                 System.err.println("Cannot split keys from node: "+node_information.getNODE_ID());
             }
-            // Atleast a few keys were distributed
-            else if (!keysToDistribute.isEmpty()) {
-                return true;
-            }
 
             return true;
         } catch (IOException e) {
             e.printStackTrace();
-            isLocked = false;
             return false;
         }
     }
 
+    // Adds the contacts a refusing node pointed us at to the split's candidates
+    private void offerSplitContacts(List<Triplet> contacts, List<Triplet> availableNodes,
+                                    Set<KademliaId> visitedNodes, Set<KademliaId> unreachableNodes) {
+        System.out.print("CLOSEST NODES SPLIT: ");
+
+        for (Triplet nodeInfo : contacts) {
+            KademliaId nodeId = nodeInfo.getNODE_ID();
+            System.out.println(nodeInfo.getUDP_PORT() + " " + nodeId);
+
+            if (!visitedNodes.contains(nodeId) && !unreachableNodes.contains(nodeId)) {
+                availableNodes.add(nodeInfo);
+                visitedNodes.add(nodeId);
+                addToRoutingTable(nodeInfo);
+            }
+        }
+    }
     private void sendGoodbyeMessage(Triplet targetNode) {
         try {
-            DatagramSocket goodbyeSocket = new DatagramSocket();
-            String message = "GOODBYE " + node_information.getIP_ADDR() + " " +
-                    node_information.getUDP_PORT() + " " + node_information.getNODE_ID();
-            byte[] buffer = message.getBytes();
-            DatagramPacket packet = new DatagramPacket(buffer, buffer.length,
-                    InetAddress.getByName(targetNode.getIP_ADDR()),
-                    targetNode.getUDP_PORT());
-            goodbyeSocket.send(packet);
+            rpc.post(targetNode, transactionId -> WireCodec.encode(Message.GOODBYE, transactionId, node_information));
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -565,29 +1110,42 @@ public class Node {
         return node_information;
     }
 
-    private String generateSHA1(String input) {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
-            byte[] hashBytes = md.digest(input.getBytes());
-
-            // Convert byte array to hex string
-            Formatter formatter = new Formatter();
-            for (byte b : hashBytes) {
-                formatter.format("%02x", b);
-            }
-            String sha1 = formatter.toString();
-            formatter.close();
-            return sha1;
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-            return null;
-        }
+    public List<Triplet> findNode(KademliaId targetNodeId) {
+        return findNodeWithStats(targetNodeId).getContacts();
+    }
+
+    /*
+     * Iterative Kademlia lookup. The shortlist holds at most k contacts. While
+     * replies keep bringing closer nodes, alpha requests are kept in flight;
+     * once a reply brings nothing closer, every unqueried node in the k
+     * closest is queried. The lookup ends when all k closest have been asked.
+     */
+    public LookupResult findNodeWithStats(KademliaId targetNodeId) {
+        return lookup(targetNodeId, false);
     }
 
-    public List<Triplet> findNode(int targetNodeId) {
+    /*
+     * The walk behind findNodeWithStats() and findKey(). A key lookup
+     * (findKey set) sends FIND_KEY instead of FIND_NODE: a node holding the
+     * key answers for itself and the walk ends there, a node with a cached
+     * location names the holder, which is then asked alongside the rest of
+     * the walk, and any other node answers with its k closest to the key.
+     * With hedged reads a key lookup asks one node at a time, and one more
+     * whenever no answer has come back within the hedge delay, so a dead or
+     * slow node costs a short delay instead of a full timeout. The extra
+     * slot is given back once the slow request answers.
+     */
+    private LookupResult lookup(KademliaId targetNodeId, boolean findKey) {
+        if (!targetNodeId.equals(node_information.getNODE_ID())) {
+            bucketLookups.set(routingTable.bucketIndex(targetNodeId), System.currentTimeMillis());
+        }
+        Comparator<Triplet> byDistance = distanceTo(targetNodeId);
+
         // Initialize seen nodes and closest nodes
-        Set<Integer> queriedNodes = new HashSet<>();
-        Set<Integer> seenNodes = new HashSet<>();
+        Set<KademliaId> queriedNodes = new HashSet<>();
+        Set<KademliaId> seenNodes = new HashSet<>();
+        // Hop count at which each contact was learned, the initial contacts are one hop away
+        Map<KademliaId, Integer> hopCounts = new HashMap<>();
 
         // Add self to queried set
         queriedNodes.add(node_information.getNODE_ID());
@@ -596,87 +1154,639 @@ public class Node {
         List<Triplet> closestNodes = findKClosestNodesForKeyFromSelf(targetNodeId, K_BUCKET_SIZE);
         for (Triplet node : closestNodes) {
             seenNodes.add(node.getNODE_ID());
+            hopCounts.put(node.getNODE_ID(), 1);
         }
+        closestNodes.sort(byDistance);
+        // Nodes pushed out of the k closest, they take the place of any of those that turn out dead
+        List<Triplet> spareNodes = new ArrayList<>();
+
+        // Replies are handed back here as they arrive, in whatever order the peers answer
+        BlockingQueue<LookupReply> replies = new LinkedBlockingQueue<>();
+        int inFlight = 0;
+        int messagesSent = 0;
+        int hops = 0;
+        int timeouts = 0;
+        Triplet closestSeen = closestNodes.isEmpty() ? null : closestNodes.get(0);
+        boolean converging = true;
+        Triplet holder = null;
+        boolean hedging = findKey && hedgedReads;
+        // Backup requests sent because the ones in flight were slow, and the slow requests they back up
+        int hedges = 0;
+        Set<KademliaId> hedgedOver = new HashSet<>();
+        // Nodes asked that haven't answered yet, oldest first
+        Set<KademliaId> awaiting = new LinkedHashSet<>();
+        long hedgeDelayNanos = hedging ? hedgeDelayNanos() : Long.MAX_VALUE;
+        // The closest node that answered without the key, where the key's location is worth caching
+        Triplet closestMiss = null;
+        List<CompletableFuture<Message>> requests = new ArrayList<>();
+
+        while (holder == null) {
+            // Hedged key lookups ask one node at a time plus one per hedge, other lookups
+            // alpha while converging and the whole shortlist once a reply stops improving it
+            int parallelism = hedging ? 1 + hedges : converging ? alpha : Math.max(alpha, K_BUCKET_SIZE);
+            boolean unqueried = false;
+            for (Triplet node : closestNodes) {
+                if (queriedNodes.contains(node.getNODE_ID())) continue;
+                if (inFlight >= parallelism) {
+                    unqueried = true;
+                    break;
+                }
+                queriedNodes.add(node.getNODE_ID());
+                awaiting.add(node.getNODE_ID());
+                inFlight++;
+                messagesSent++;
+                if (findKey) {
+                    sendFindKeyRequest(node, targetNodeId, requests).thenAccept(replies::add);
+                } else {
+                    sendFindNodeRequest(node, targetNodeId)
+                            .thenAccept(returned -> replies.add(new LookupReply(node, returned, null)));
+                }
+            }
 
-        // Continue until we've queried all nodes or found the target
-        boolean improved = true;
-        while (improved) {
-            improved = false;
+            if (inFlight == 0) {
+                break; // Every one of the k closest nodes has been queried
+            }
 
-            // Sort nodes by XOR distance to targetNodeId
-            closestNodes.sort(Comparator.comparingInt(node -> targetNodeId ^ node.getNODE_ID()));
+            // Wait for whichever request finishes first, a dead peer only holds up its own slot
+            LookupReply reply;
+            try {
+                reply = unqueried ? replies.poll(hedgeDelayNanos, TimeUnit.NANOSECONDS) : replies.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (reply == null) {
+                // Slow answers, ask the next candidate alongside the oldest of them
+                for (KademliaId slow : awaiting) {
+                    if (hedgedOver.add(slow)) {
+                        hedges++;
+                        break;
+                    }
+                }
+                continue;
+            }
+            inFlight--;
+            KademliaId repliedId = reply.queriedNode.getNODE_ID();
+            awaiting.remove(repliedId);
+            if (hedgedOver.remove(repliedId)) {
+                hedges--; // The slow request is back, its backup no longer needs a slot of its own
+            }
 
-            // Create a list of nodes to query in this round
-            List<Triplet> nodesToQuery = new ArrayList<>();
-            for (Triplet node : closestNodes) {
-                if (!queriedNodes.contains(node.getNODE_ID())) {
-                    nodesToQuery.add(node);
-                    if (nodesToQuery.size() >= K_BUCKET_SIZE) break;
+            if (reply.holder != null) {
+                Triplet hinted = reply.holder;
+                if (hinted.getNODE_ID().equals(repliedId)) {
+                    holder = hinted; // Answered for itself
+                } else if (queriedNodes.add(hinted.getNODE_ID())) {
+                    // Another node remembers the holder, which has to answer for itself before we believe it
+                    seenNodes.add(hinted.getNODE_ID());
+                    hopCounts.putIfAbsent(hinted.getNODE_ID(), hopCounts.getOrDefault(repliedId, 1) + 1);
+                    awaiting.add(hinted.getNODE_ID());
+                    inFlight++;
+                    messagesSent++;
+                    sendFindKeyRequest(hinted, targetNodeId, requests).thenAccept(replies::add);
                 }
+                continue;
             }
 
-            if (nodesToQuery.isEmpty()) {
-                break; // No more nodes to query
+            if (reply.returnedNodes == null) {
+                // Dead peers don't belong in the result
+                timeouts++;
+                spareNodes.removeIf(node -> node.getNODE_ID().equals(repliedId));
+                // It may have been pushed out to the spares while its request was in flight
+                boolean wasClosest = closestNodes.removeIf(node -> node.getNODE_ID().equals(repliedId));
+                if (wasClosest && !spareNodes.isEmpty()) {
+                    spareNodes.sort(byDistance);
+                    closestNodes.add(spareNodes.remove(0));
+                    closestNodes.sort(byDistance);
+                }
+                continue;
             }
 
-            // Query each node
-            for (Triplet nodeToQuery : nodesToQuery) {
-                queriedNodes.add(nodeToQuery.getNODE_ID());
+            if (findKey && (closestMiss == null || byDistance.compare(reply.queriedNode, closestMiss) < 0)) {
+                closestMiss = reply.queriedNode;
+            }
 
-                // Send FIND_NODE request
-                List<Triplet> returnedNodes = sendFindNodeRequest(nodeToQuery, targetNodeId);
+            int replyHops = hopCounts.getOrDefault(repliedId, 1);
+            hops = Math.max(hops, replyHops);
 
-                // Process returned nodes
-                for (Triplet returnedNode : returnedNodes) {
-                    if (!seenNodes.contains(returnedNode.getNODE_ID())) {
-                        seenNodes.add(returnedNode.getNODE_ID());
-                        closestNodes.add(returnedNode);
-                        improved = true;
-                    }
+            // Process returned nodes
+            for (Triplet returnedNode : reply.returnedNodes) {
+                if (seenNodes.add(returnedNode.getNODE_ID())) {
+                    hopCounts.put(returnedNode.getNODE_ID(), replyHops + 1);
+                    closestNodes.add(returnedNode);
                 }
             }
 
-            // Keep only the k closest nodes
-            if (closestNodes.size() > K_BUCKET_SIZE) {
-                closestNodes.sort(Comparator.comparingInt(node -> targetNodeId ^ node.getNODE_ID()));
-                //closestNodes = closestNodes.subList(0, K_BUCKET_SIZE);
+            // Keep only the k closest nodes, the rest are spares
+            closestNodes.sort(byDistance);
+            while (closestNodes.size() > K_BUCKET_SIZE) {
+                spareNodes.add(closestNodes.remove(closestNodes.size() - 1));
+            }
+
+            Triplet newClosest = closestNodes.isEmpty() ? null : closestNodes.get(0);
+            converging = newClosest != null && (closestSeen == null || byDistance.compare(newClosest, closestSeen) < 0);
+            if (converging) {
+                closestSeen = newClosest;
             }
         }
 
-        return closestNodes;
+        // Late answers to requests still in flight are dropped by the RPC client
+        for (CompletableFuture<Message> request : requests) {
+            request.cancel(false);
+        }
+
+        return new LookupResult(closestNodes, messagesSent, hops, timeouts, holder, closestMiss);
+    }
+
+    private static class LookupReply {
+        final Triplet queriedNode;
+        // Null when the node didn't answer
+        final List<Triplet> returnedNodes;
+        // Key lookups only: the node holding the key, as far as the queried node knows
+        final Triplet holder;
+
+        LookupReply(Triplet queriedNode, List<Triplet> returnedNodes, Triplet holder) {
+            this.queriedNode = queriedNode;
+            this.returnedNodes = returnedNodes;
+            this.holder = holder;
+        }
+    }
+
+    public int getAlpha() {
+        return alpha;
     }
 
-    public int findKey(int searchKey) {
-        // Generate SHA-1 hash of the key
-        String hash = generateSHA1(String.valueOf(searchKey));
+    public void setAlpha(int alpha) {
+        if (alpha < 1) {
+            throw new IllegalArgumentException("Alpha must be at least 1");
+        }
+        this.alpha = alpha;
+    }
+
+    public boolean isHedgedReads() {
+        return hedgedReads;
+    }
 
+    public void setHedgedReads(boolean hedgedReads) {
+        this.hedgedReads = hedgedReads;
+    }
+
+    // Returns the ID of the node holding the key, or null if it isn't stored anywhere we can reach
+    public KademliaId findKey(int searchKey) {
+        return findKey(KademliaId.sha1(searchKey));
+    }
+
+    public KademliaId findKey(KademliaId keyId) {
         // Check if value exists locally
-        if (hashTable.containsKey(hash)) {
+        if (localStore.contains(keyId)) {
             return node_information.getNODE_ID();
         }
 
-        // If not found locally, find the closest nodes to the key
-        List<Triplet> closestNodes = findNode(searchKey);
+        // A cached location costs one round trip to confirm instead of a lookup
+        Triplet cached = locationCache.get(keyId);
+        if (cached != null) {
+            if (confirmHolder(cached, keyId)) {
+                return cached.getNODE_ID();
+            }
+            locationCache.remove(keyId); // Moved by a split, or the holder left
+        }
 
-        // Query each of the closest nodes directly
-        for (Triplet node : closestNodes) {
-            int result = sendFindKey(node, searchKey);
-            if (result >= 0) {
-                return result; // Key found at node with ID = result
+        // Walk towards the key, stopping at the first node that holds it or knows who does
+        LookupResult result = lookup(keyId, true);
+        Triplet holder = result.getHolder();
+        if (holder == null) {
+            return null; // Every one of the key's closest nodes was asked
+        }
+
+        locationCache.put(keyId, holder, LOCATION_CACHE_TTL_MILLIS);
+        if (result.getClosestMiss() != null) {
+            cacheOnPath(keyId, holder, result.getClosestMiss());
+        }
+        return holder.getNODE_ID(); // Key found at node with ID = result
+    }
+
+    private long hedgeDelayNanos() {
+        long delayMillis = DEFAULT_HEDGE_DELAY_MILLIS;
+        if (findKeyLatency.count() >= MIN_HEDGE_SAMPLES) {
+            delayMillis = TimeUnit.NANOSECONDS.toMillis(findKeyLatency.percentile(HEDGE_PERCENTILE));
+        }
+        return TimeUnit.MILLISECONDS.toNanos(Math.max(MIN_HEDGE_DELAY_MILLIS, Math.min(delayMillis, MAX_HEDGE_DELAY_MILLIS)));
+    }
+
+    // Whether the node still holds the key itself, as opposed to another node's cached word for it
+    private boolean confirmHolder(Triplet holder, KademliaId keyId) {
+        Triplet answer = sendFindKey(holder, keyId);
+        return answer != null && answer.getNODE_ID().equals(holder.getNODE_ID());
+    }
+
+    /*
+     * Leaves the key's location with the closest node the lookup asked
+     * that didn't have the key, so a later key lookup that asks it learns
+     * the holder there (see lookup()). The hint lives
+     * LOCATION_CACHE_TTL_MILLIS, halved for every bit of key prefix the
+     * cache node shares less than the holder does, so nodes far from the key
+     * don't keep its location around for long.
+     */
+    private void cacheOnPath(KademliaId keyId, Triplet holder, Triplet cacheNode) {
+        int fartherBits = holder.getNODE_ID().commonPrefixLength(keyId) - cacheNode.getNODE_ID().commonPrefixLength(keyId);
+        int ttlMillis = LOCATION_CACHE_TTL_MILLIS >> Math.min(Math.max(fartherBits, 0), 30);
+
+        try {
+            rpc.post(cacheNode, transactionId -> WireCodec.encodeCacheLocation(transactionId, node_information, keyId, holder, ttlMillis));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Batch form of findKey(), maps each key that was found to the ID of the node holding it
+    public Map<Integer, KademliaId> findKeys(Collection<Integer> searchKeys) {
+        Map<KademliaId, Integer> keysById = new LinkedHashMap<>();
+        for (int key : searchKeys) {
+            keysById.put(KademliaId.sha1(key), key);
+        }
+
+        Map<Integer, KademliaId> results = new ConcurrentHashMap<>();
+        findKeyIds(keysById.keySet(), (keyId, holder) -> results.put(keysById.get(keyId), holder));
+        return results;
+    }
+
+    /*
+     * Looks up many keys at once, calling onFound(key, holder) as each
+     * answer arrives, from the receive thread for batched answers. Keys are walked in ID order
+     * and share lookups the same way storeValues() does, so the routing work
+     * is a few lookups for the whole batch. Every peer that is among the
+     * closest nodes of any key then gets one FIND_KEYS for all of its keys,
+     * all peers at once, so after routing the batch takes a single round
+     * trip. Keys none of those peers held, because a peer was silent or the
+     * key moved beyond the closest nodes we knew, each get a full findKey()
+     * once every peer has answered or timed out.
+     */
+    public void findKeyIds(Collection<KademliaId> keyIds, BiConsumer<KademliaId, KademliaId> onFound) {
+        List<KademliaId> remaining = new ArrayList<>();
+        for (KademliaId keyId : keyIds) {
+            if (localStore.contains(keyId)) {
+                onFound.accept(keyId, node_information.getNODE_ID());
+            } else {
+                remaining.add(keyId);
+            }
+        }
+        if (remaining.isEmpty()) {
+            return;
+        }
+        remaining.sort(null);
+
+        // Collect, per peer, the keys it is one of the closest nodes for
+        Map<KademliaId, Triplet> peers = new HashMap<>();
+        Map<KademliaId, List<KademliaId>> keysByPeer = new LinkedHashMap<>();
+        List<Triplet> region = null;
+        KademliaId regionKey = null;
+        int regionDepth = 0;
+        int lookups = 0;
+
+        for (KademliaId keyId : remaining) {
+            if (region == null || ownerInRegion(region, regionKey, regionDepth, keyId) == null) {
+                region = findOwnerCandidates(keyId);
+                regionKey = keyId;
+                regionDepth = regionDepth(region, keyId);
+                lookups++;
+            }
+            for (Triplet peer : region) {
+                if (!peer.getNODE_ID().equals(node_information.getNODE_ID())) {
+                    peers.putIfAbsent(peer.getNODE_ID(), peer);
+                    keysByPeer.computeIfAbsent(peer.getNODE_ID(), id -> new ArrayList<>()).add(keyId);
+                }
+            }
+        }
+
+        // A key may be held by several peers, report it once
+        Set<KademliaId> outstanding = ConcurrentHashMap.newKeySet();
+        outstanding.addAll(remaining);
+        CompletableFuture<Void> allFound = new CompletableFuture<>();
+
+        List<CompletableFuture<Message>> replies = new ArrayList<>();
+        for (Map.Entry<KademliaId, List<KademliaId>> entry : keysByPeer.entrySet()) {
+            Triplet peer = peers.get(entry.getKey());
+            List<KademliaId> peerKeys = entry.getValue();
+
+            for (int start = 0; start < peerKeys.size(); start += WireCodec.MAX_FIND_KEYS) {
+                List<KademliaId> request = peerKeys.subList(start, Math.min(start + WireCodec.MAX_FIND_KEYS, peerKeys.size()));
+                CompletableFuture<Message> reply = rpc.send(peer,
+                        transactionId -> WireCodec.encodeFindKeys(transactionId, node_information, request),
+                        5000); // 5 seconds timeout, as for a single FIND_KEY
+
+                replies.add(reply.whenComplete((response, error) -> {
+                    if (response == null || response.type != Message.FOUND_KEYS || response.held.length != request.size()) {
+                        return;
+                    }
+                    for (int i = 0; i < request.size(); i++) {
+                        if (response.held[i] && outstanding.remove(request.get(i))) {
+                            onFound.accept(request.get(i), response.sender.getNODE_ID());
+                        }
+                    }
+                    if (outstanding.isEmpty()) {
+                        allFound.complete(null);
+                    }
+                }));
             }
         }
 
-        // If we've queried all nodes and didn't find the key
-        return -1;
+        try {
+            CompletableFuture.anyOf(CompletableFuture.allOf(replies.toArray(new CompletableFuture<?>[0])), allFound).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // Some peer timed out, the answers that did arrive are already reported
+        }
+        int batchFound = remaining.size() - outstanding.size();
+
+        // A late FOUND_KEYS may still report a key meanwhile, whichever answer comes first wins
+        for (KademliaId keyId : new ArrayList<>(outstanding)) {
+            KademliaId holderId = findKey(keyId);
+            if (holderId != null && outstanding.remove(keyId)) {
+                onFound.accept(keyId, holderId);
+            }
+        }
+
+        System.out.println("Found " + batchFound + " of " + remaining.size() + " remote keys asking " + peers.size() +
+                " nodes after " + lookups + " lookups, " + (remaining.size() - batchFound - outstanding.size()) +
+                " more by single lookups");
     }
+    // Integer keys are stored under their SHA-1 with the key itself as the value
     public boolean storeKey(int key)
     {
-        if(hashTable.containsKey(key)) {
+        return storeValue(KademliaId.sha1(key), intValue(key), true);
+    }
+
+    public boolean storeValue(KademliaId keyId, byte[] value)
+    {
+        // A value no STORE_KEY can carry could never be forwarded or handed off
+        if (value.length > WireCodec.MAX_VALUE_SIZE) {
+            throw new IllegalArgumentException("Value of " + value.length + " bytes does not fit in a datagram");
+        }
+        return storeValue(keyId, value, true);
+    }
+
+    static byte[] intValue(int key)
+    {
+        return ByteBuffer.allocate(4).putInt(key).array();
+    }
+
+    // Bulk form of storeKey(), returns the number of keys stored
+    public int storeKeys(List<Integer> keys)
+    {
+        List<KademliaId> keyIds = new ArrayList<>(keys.size());
+        List<byte[]> values = new ArrayList<>(keys.size());
+        for (int key : keys) {
+            keyIds.add(KademliaId.sha1(key));
+            values.add(intValue(key));
+        }
+        return storeValues(keyIds, values);
+    }
+
+    /*
+     * Bulk form of storeValue(), for loading many keys at once. The keys are
+     * walked in ID order so that neighbouring keys share an owner, and one
+     * lookup settles the owner of every key in the region it covers (see
+     * ownerInRegion), so a load costs a few lookups rather than one per key.
+     * Each owner then gets its keys in STORE_KEYS batches, with up to
+     * STORE_PIPELINE_DEPTH batches in flight at once. Keys an owner has no
+     * room for fall back to a single STORE_KEY, which lets the owner split,
+     * as do values too large to share a datagram. Keys of an owner that
+     * didn't answer go to the other nodes closest to them instead.
+     * Returns the number of keys stored.
+     */
+    public int storeValues(List<KademliaId> keyIds, List<byte[]> values)
+    {
+        if (keyIds.size() != values.size()) {
+            throw new IllegalArgumentException("Got " + keyIds.size() + " keys but " + values.size() + " values");
+        }
+        for (byte[] value : values) {
+            if (value.length > WireCodec.MAX_VALUE_SIZE) {
+                throw new IllegalArgumentException("Value of " + value.length + " bytes does not fit in a datagram");
+            }
+        }
+
+        List<Integer> order = new ArrayList<>(keyIds.size());
+        for (int i = 0; i < keyIds.size(); i++) {
+            order.add(i);
+        }
+        order.sort((a, b) -> keyIds.get(a).compareTo(keyIds.get(b)));
+
+        // Assign every key to its owner, reusing the last lookup while the keys stay inside its region
+        Map<KademliaId, Triplet> owners = new HashMap<>();
+        Map<KademliaId, List<Integer>> keysByOwner = new LinkedHashMap<>();
+        // The candidates each key's owner was picked from, the fallbacks if it doesn't take the key
+        Map<Integer, List<Triplet>> candidatesByKey = new HashMap<>();
+        List<Triplet> region = null;
+        KademliaId regionKey = null;
+        int regionDepth = 0;
+        int lookups = 0;
+
+        for (int index : order) {
+            KademliaId keyId = keyIds.get(index);
+            Triplet owner = region == null ? null : ownerInRegion(region, regionKey, regionDepth, keyId);
+            if (owner == null) {
+                region = findOwnerCandidates(keyId);
+                regionKey = keyId;
+                regionDepth = regionDepth(region, keyId);
+                owner = region.get(0);
+                lookups++;
+            }
+            owners.putIfAbsent(owner.getNODE_ID(), owner);
+            keysByOwner.computeIfAbsent(owner.getNODE_ID(), id -> new ArrayList<>()).add(index);
+            candidatesByKey.put(index, region);
+        }
+
+        int stored = 0;
+        // Keys an owner didn't take, and that owner
+        Map<Integer, Triplet> rejected = new LinkedHashMap<>();
+        // Owners that didn't answer a batch, not worth a single store each
+        Set<KademliaId> silentOwners = new HashSet<>();
+        // Keys too large to share a STORE_KEYS datagram with anything
+        List<Integer> singles = new ArrayList<>();
+
+        // Our own share goes straight into the local store
+        List<Integer> ownKeys = keysByOwner.remove(node_information.getNODE_ID());
+        if (ownKeys != null) {
+            for (int index : ownKeys) {
+                if (storeValue(keyIds.get(index), values.get(index), true)) {
+                    stored++;
+                }
+            }
+        }
+
+        // Pipeline the batches, waiting on the oldest one only once the window is full
+        Deque<StoreBatch> inFlight = new ArrayDeque<>();
+        for (Map.Entry<KademliaId, List<Integer>> entry : keysByOwner.entrySet()) {
+            Triplet owner = owners.get(entry.getKey());
+            List<Integer> ownerKeys = entry.getValue();
+
+            int start = 0;
+            while (start < ownerKeys.size()) {
+                List<Integer> batch = new ArrayList<>();
+                List<KademliaId> batchIds = new ArrayList<>();
+                List<byte[]> batchValues = new ArrayList<>();
+                int payload = 0;
+                while (start < ownerKeys.size()) {
+                    int index = ownerKeys.get(start);
+                    if (WireCodec.storeKeysEntrySize(values.get(index)) > WireCodec.STORE_KEYS_PAYLOAD) {
+                        singles.add(index);
+                        start++;
+                        continue;
+                    }
+                    payload += WireCodec.storeKeysEntrySize(values.get(index));
+                    if (payload > WireCodec.STORE_KEYS_PAYLOAD) {
+                        break;
+                    }
+                    batch.add(index);
+                    batchIds.add(keyIds.get(index));
+                    batchValues.add(values.get(index));
+                    start++;
+                }
+                if (batch.isEmpty()) {
+                    continue;
+                }
+
+                if (inFlight.size() == STORE_PIPELINE_DEPTH) {
+                    stored += awaitStoreBatch(inFlight.poll(), rejected, silentOwners);
+                }
+                CompletableFuture<Message> reply = rpc.send(owner,
+                        transactionId -> WireCodec.encodeStoreKeys(transactionId, node_information, batchIds, batchValues),
+                        1000);
+                inFlight.add(new StoreBatch(owner, batch, reply));
+            }
+        }
+        while (!inFlight.isEmpty()) {
+            stored += awaitStoreBatch(inFlight.poll(), rejected, silentOwners);
+        }
+
+        /*
+         * Store the rest one at a time: a full owner can split or point us
+         * elsewhere, and a silent one is passed over for the key's other
+         * candidates.
+         */
+        singles.addAll(rejected.keySet());
+        for (int index : singles) {
+            KademliaId keyId = keyIds.get(index);
+            List<Triplet> candidates = new ArrayList<>(candidatesByKey.get(index));
+            candidates.removeIf(contact -> silentOwners.contains(contact.getNODE_ID()));
+            candidates.sort(distanceTo(keyId));
+            if (storeInNodes(keyId, values.get(index), candidates)) {
+                stored++;
+            }
+        }
+
+        System.out.println("Stored " + stored + " of " + keyIds.size() + " keys on " + owners.size() +
+                " nodes using " + lookups + " lookups");
+        return stored;
+    }
+
+    // The k closest nodes to the key that we know of after a lookup, ourselves included, nearest first
+    private List<Triplet> findOwnerCandidates(KademliaId keyId) {
+        List<Triplet> candidates = new ArrayList<>(findNode(keyId));
+        candidates.removeIf(contact -> contact.getNODE_ID().equals(node_information.getNODE_ID()));
+        candidates.add(node_information);
+        candidates.sort(distanceTo(keyId));
+        while (candidates.size() > K_BUCKET_SIZE) {
+            candidates.remove(candidates.size() - 1);
+        }
+        return candidates;
+    }
+
+    // Every node outside the candidates is further from the key than the last one, so shares fewer leading bits
+    private static int regionDepth(List<Triplet> candidates, KademliaId keyId) {
+        if (candidates.size() < K_BUCKET_SIZE) {
+            return 0; // The lookup found every node there is
+        }
+        return keyId.commonPrefixLength(candidates.get(candidates.size() - 1).getNODE_ID()) + 1;
+    }
+
+    /*
+     * Owner of keyId taken from an earlier lookup for regionKey, or null if
+     * that lookup can't vouch for it. No node outside the candidates shares
+     * regionDepth leading bits with regionKey, so for a key inside that
+     * prefix, a candidate sharing regionDepth bits with the key is closer to
+     * it than any node the lookup didn't return.
+     */
+    private static Triplet ownerInRegion(List<Triplet> candidates, KademliaId regionKey, int regionDepth, KademliaId keyId) {
+        if (keyId.commonPrefixLength(regionKey) < regionDepth) {
+            return null;
+        }
+        Triplet best = Collections.min(candidates, distanceTo(keyId));
+        return keyId.commonPrefixLength(best.getNODE_ID()) >= regionDepth ? best : null;
+    }
+
+    /*
+     * Waits for a batch's reply, returns how many of its keys were taken and
+     * queues the rest in rejected. Owners that never answered go in silent.
+     */
+    private int awaitStoreBatch(StoreBatch batch, Map<Integer, Triplet> rejected, Set<KademliaId> silent) {
+        Message response;
+        try {
+            response = batch.reply.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            response = null;
+        } catch (ExecutionException e) {
+            response = null; // Timed out or couldn't be sent
+        }
+
+        if (response == null) {
+            silent.add(batch.owner.getNODE_ID());
+            reportUnresponsive(batch.owner);
+        }
+        if (response == null || response.type != Message.STORE_KEYS_REPLY
+                || response.accepted.length != batch.keys.size()) {
+            // Silent, or too busy and answered with its closest nodes
+            for (int index : batch.keys) {
+                rejected.put(index, batch.owner);
+            }
+            return 0;
+        }
+
+        int accepted = 0;
+        for (int i = 0; i < batch.keys.size(); i++) {
+            if (response.accepted[i]) {
+                accepted++;
+            } else {
+                rejected.put(batch.keys.get(i), batch.owner);
+            }
+        }
+        return accepted;
+    }
+
+    private static class StoreBatch {
+        final Triplet owner;
+        final List<Integer> keys;
+        final CompletableFuture<Message> reply;
+
+        StoreBatch(Triplet owner, List<Integer> keys, CompletableFuture<Message> reply) {
+            this.owner = owner;
+            this.keys = keys;
+            this.reply = reply;
+        }
+    }
+
+    /*
+     * Stores received from peers pass forwardIfFull = false: a node still full
+     * after splitting refuses them and lets the requester try the next node, rather
+     * than forwarding them on. Otherwise full nodes keep bouncing the same key
+     * between each other while their splits are in flight.
+     */
+    private boolean storeValue(KademliaId hash, byte[] value, boolean forwardIfFull)
+    {
+        if(localStore.contains(hash)) {
             System.out.println("Duplicate key detected, key already stored in table");
             return false;
         }
 
-        if(isFull())
+        if(localStore.entryBytes(value.length) > localStore.capacityBytes()) {
+            // No split can make room for this one
+            System.out.println("Value of " + value.length + " bytes exceeds the capacity of node ID " + node_information.getNODE_ID());
+            return forwardIfFull && storeInClosestNode(hash, value);
+        }
+
+        if(!localStore.hasRoomFor(value))
         {
             System.out.println("Node ID " + node_information.getNODE_ID() + " is full");
             boolean possible = sendSplitHashTableRequest();
@@ -685,27 +1795,36 @@ public class Node {
             }
         }
 
-        if(isLocked) {
-            return storeKeyInClosestNode(key);
+        if(!localStore.putIfRoom(hash, value)) {
+            // A split is still in flight on another thread or couldn't move enough keys
+            return forwardIfFull && storeInClosestNode(hash, value);
         }
 
-        String hash = generateSHA1(String.valueOf(key));
-        hashTable.put(hash, key);
-
         return true;
     }
 
-    private boolean storeKeyInClosestNode(int key) {
-        // Find the closest nodes to the key
-        List<Triplet> closestNodes = findKClosestNodesForKeyFromSelf(key, K_BUCKET_SIZE);
+    private boolean storeInClosestNode(KademliaId keyId, byte[] value) {
+        // Find the closest nodes to the key's hash
+        List<Triplet> closestNodes = findKClosestNodesForKeyFromSelf(keyId, K_BUCKET_SIZE);
 
         if (closestNodes.isEmpty()) {
-            System.out.println("No available nodes to store key " + key);
+            System.out.println("No available nodes to store key " + keyId.toShortHex());
             return false;
         }
 
+        return storeInNodes(keyId, value, closestNodes);
+    }
+
+    // Offers the key to each node in turn, following the closest nodes any full node points us at
+    private boolean storeInNodes(KademliaId keyId, byte[] value, List<Triplet> closestNodes) {
+        return storeInNodes(keyId, value, closestNodes, Long.MAX_VALUE);
+    }
+
+    // As above, giving up once the deadline (in epoch milliseconds) has passed
+    private boolean storeInNodes(KademliaId keyId, byte[] value, List<Triplet> closestNodes, long deadline) {
+
         // Set to track nodes we've already tried
-        Set<Integer> triedNodes = new HashSet<>();
+        Set<KademliaId> triedNodes = new HashSet<>();
         triedNodes.add(node_information.getNODE_ID()); // Add self to tried nodes
 
         // Queue of nodes to try
@@ -721,149 +1840,160 @@ public class Node {
 
             triedNodes.add(targetNode.getNODE_ID());
 
-            try {
-                DatagramSocket storeSocket = new DatagramSocket();
-                storeSocket.setSoTimeout(1000); // 5 second timeout
-
-                // Prepare STORE_KEY message
-                String message = "STORE_KEY " + key + " " +
-                        node_information.getIP_ADDR() + " " +
-                        node_information.getUDP_PORT() + " " +
-                        node_information.getNODE_ID();
-
-                byte[] buffer = message.getBytes();
-                DatagramPacket packet = new DatagramPacket(
-                        buffer, buffer.length,
-                        InetAddress.getByName(targetNode.getIP_ADDR()),
-                        targetNode.getUDP_PORT()
-                );
-
-                // Send the request
-                storeSocket.send(packet);
-
-                // Wait for response
-                byte[] responseBuffer = new byte[BUFFER_SIZE];
-                DatagramPacket responsePacket = new DatagramPacket(responseBuffer, responseBuffer.length);
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                break;
+            }
 
-                try {
-                    storeSocket.receive(responsePacket);
-                    String response = new String(responsePacket.getData(), 0, responsePacket.getLength());
+            try {
+                // Send STORE_KEY request and wait for response
+                Message response = rpc.call(targetNode,
+                        transactionId -> WireCodec.encodeStoreKey(transactionId, node_information, keyId, value),
+                        Math.min(1000, remaining)); // 1 second timeout, or whatever is left before the deadline
 
-                    // Process the response
-                    if (response.startsWith("STORED_KEY")) {
-                        storeSocket.close();
-                        return true; // Key stored successfully
-                    }
-                    else if (response.startsWith("CLOSEST_NODES")) {
-                        // Add returned nodes to our queue
-                        String[] parts = response.split(" ");
-                        for (int i = 1; i < parts.length; i += 3) {
-                            if (i + 2 < parts.length) {
-                                String ip = parts[i];
-                                int port = Integer.parseInt(parts[i + 1]);
-                                int nodeId = Integer.parseInt(parts[i + 2]);
-
-                                if (!triedNodes.contains(nodeId)) {
-                                    Triplet nodeInfo = new Triplet(ip, port, nodeId);
-                                    nodesToTry.add(nodeInfo);
-                                    addToRoutingTable(nodeInfo);
-                                }
-                            }
+                if (response == null) {
+                    System.out.println("No response from node ID " + targetNode.getNODE_ID());
+                    reportUnresponsive(targetNode);
+                }
+                // Process the response
+                else if (response.type == Message.STORED_KEY) {
+                    return true; // Key stored successfully
+                }
+                else if (response.type == Message.CLOSEST_NODES) {
+                    // Add returned nodes to our queue
+                    for (Triplet nodeInfo : response.contacts) {
+                        if (!triedNodes.contains(nodeInfo.getNODE_ID())) {
+                            nodesToTry.add(nodeInfo);
+                            addToRoutingTable(nodeInfo);
                         }
                     }
                 }
-                catch (SocketTimeoutException e) {
-                    System.out.println("No response from node ID " + targetNode.getNODE_ID());
-                    removeFromRoutingTable(targetNode.getNODE_ID()); // Remove unresponsive node
-                }
-
-                storeSocket.close();
-
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
 
         // If we've tried all nodes and couldn't store the key
-        System.out.println("Cannot store key " + key + " anywhere in the network");
+        System.out.println("Cannot store key " + keyId.toShortHex() + " anywhere in the network");
         return false;
     }
 
     public boolean isFull()
     {
-        return hashTable.size() >= MAX_TABLE_SIZE;
+        return localStore.isFull();
     }
 
     public void addToRoutingTable(Triplet nodeInfo) {
-        int bucketIndex = getBucketIndex(nodeInfo.getNODE_ID());
+        // Contacts in the table show their peer's round-trip estimate
+        rpc.rttFor(nodeInfo);
+        Triplet leastRecentlySeen = routingTable.add(nodeInfo);
 
-        // Get the bucket
-        List<Triplet> bucket = routingTable.computeIfAbsent(bucketIndex, k -> new ArrayList<>());
+        // The bucket is full, the newcomer waits in its replacement cache while we check on the head
+        if (leastRecentlySeen != null) {
+            probeBeforeEvict(leastRecentlySeen);
+        }
+    }
 
-        // Prevent duplicate entries
-        for (Triplet t : bucket) {
-            if (t.getNODE_ID() == nodeInfo.getNODE_ID()) {
-                return;
-            }
+    /*
+     * Pings the least-recently seen contact of a full bucket without blocking.
+     * If it answers it moves to the tail and stays, long-lived contacts being
+     * the most likely to stay up; if not, it is removed and the bucket's most
+     * recent replacement takes its place.
+     */
+    private void probeBeforeEvict(Triplet contact) {
+        KademliaId contactId = contact.getNODE_ID();
+        if (!evictionProbes.add(contactId)) {
+            return; // Already being probed
         }
 
-        if (bucket.size() < K_BUCKET_SIZE) {
-            bucket.add(nodeInfo);
-        } else {
-            // Replacement strategy: Remove the oldest node (FIFO)
-            bucket.remove(0);
-            bucket.add(nodeInfo);
+        rpc.send(contact,
+                transactionId -> WireCodec.encode(Message.PING, transactionId, node_information),
+                2000) // 2-second timeout
+                .whenComplete((response, error) -> {
+                    evictionProbes.remove(contactId);
+                    if (response != null && response.type == Message.PONG && response.sender.getNODE_ID().equals(contactId)) {
+                        routingTable.add(contact);
+                    } else {
+                        // The newcomer stays in the replacement cache unless the head is suspected down
+                        reportUnresponsive(contact);
+                    }
+                });
+    }
+
+    public void removeFromRoutingTable(KademliaId NODE_ID)
+    {
+        routingTable.remove(NODE_ID);
+    }
+
+    /*
+     * Called when a contact failed to answer a request. A single miss may
+     * just be lost datagrams, so the contact is only removed once the
+     * failure detector's suspicion has crossed its threshold, i.e. it has
+     * been silent for much longer than it usually is.
+     */
+    private void reportUnresponsive(Triplet contact)
+    {
+        KademliaId contactId = contact.getNODE_ID();
+        if (failureDetector.isSuspected(contactId)) {
+            routingTable.remove(contactId);
         }
     }
 
-    public void removeFromRoutingTable(int NODE_ID)
+    // Current suspicion that the contact is down, see PhiAccrualDetector
+    public double suspicionOf(KademliaId nodeId)
     {
-        int bucketIndex = getBucketIndex(NODE_ID);
-        List<Triplet> bucket = routingTable.computeIfAbsent(bucketIndex, k -> new ArrayList<>());
-        bucket.removeIf(node -> node.getNODE_ID() == NODE_ID);
+        return failureDetector.phi(nodeId);
     }
 
 
     public void displayHashTable()
     {
-        for(Map.Entry<String, Integer> entry : hashTable.entrySet())
+        for(KademliaId key : localStore.keys())
         {
-            System.out.println("\t"+entry.getKey()+" "+entry.getValue());
+            byte[] value = localStore.get(key);
+            if(value != null)
+            {
+                System.out.println("\t"+key+" "+value.length+" bytes");
+            }
         }
     }
 
-    public Map<String, Integer> getHashTable()
+    public LocalStore getLocalStore()
     {
-        return hashTable;
+        return localStore;
     }
 
-    public Map<Integer, List<Triplet>> getRoutingTable()
+    public RoutingTable getRoutingTable()
     {
         return routingTable;
     }
 
-    public int getBucketIndex(int nodeID) {
-        int xorDistance = node_information.getNODE_ID() ^ nodeID;
-
-        // Avoid log(0) issue: If the XOR distance is 0, return the highest bucket
-        if (xorDistance == 0) return BUCKET_COUNT - 1;
+    // Index of the highest bit in which the ID differs from ours, 0..159
+    public int getBucketIndex(KademliaId nodeID) {
+        return routingTable.bucketIndex(nodeID);
+    }
 
-        // Compute bucket index as log2(xorDistance)
-        return BUCKET_COUNT - 1 - Integer.numberOfLeadingZeros(xorDistance);
+    // Orders contacts by XOR distance to the target without building the distances
+    private static Comparator<Triplet> distanceTo(KademliaId target) {
+        return (a, b) -> KademliaId.compareDistance(target, a.getNODE_ID(), b.getNODE_ID());
     }
+
     public void displayRoutingTable()
     {
-        if(routingTable.size() == 0)
+        if(routingTable.isEmpty())
         {
             return;
         }
 
         System.out.println("Displaying Routing Table for node ID: "+node_information.getNODE_ID());
-        for(Map.Entry<Integer, List<Triplet>> entry : routingTable.entrySet())
+        for(int index = 0; index < BUCKET_COUNT; index++)
         {
-            Integer key = entry.getKey();
-            List<Triplet> tripletList = entry.getValue();
-            System.out.println(key+": ");
+            List<Triplet> tripletList = routingTable.getBucket(index);
+            if(tripletList.isEmpty())
+            {
+                continue;
+            }
+            System.out.println(index+": ");
             for(Triplet nodeInfo : tripletList)
             {
                 nodeInfo.display();
@@ -871,70 +2001,56 @@ public class Node {
         }
     }
 
+    // The routing table never holds our own ID, so the closest contacts to it exclude us
     public List<Triplet> findKClosestNodesToSelf(int k) {
-        int targetID = node_information.getNODE_ID();
-        Triplet targetNodeInfo = node_information;
-
-        PriorityQueue<Triplet> minHeap = new PriorityQueue<>(Comparator.comparingInt(
-                node -> targetID ^ node.getNODE_ID()
-        ));
-
-        // Add all nodes from the routing table to the priority queue
-        for (List<Triplet> bucket : routingTable.values()) {
-            for (Triplet nodeInfo : bucket) {
-                if (nodeInfo.getNODE_ID() != targetNodeInfo.getNODE_ID()) { // Avoid adding itself
-                    minHeap.offer(nodeInfo);
-                }
-            }
-        }
-
-        // Extract the k closest nodes
-        List<Triplet> kClosestNodes = new ArrayList<>();
-        while (!minHeap.isEmpty() && kClosestNodes.size() < k) {
-            kClosestNodes.add(minHeap.poll());
-        }
+        return routingTable.closest(node_information.getNODE_ID(), k);
+    }
 
-        return kClosestNodes;
+    public List<Triplet> findKClosestNodesForKeyFromSelf(KademliaId key, int k) {
+        return routingTable.closest(key, k);
     }
 
-    public List<Triplet> findKClosestNodesForKeyFromSelf(int key, int k) {
-        PriorityQueue<Triplet> minHeap = new PriorityQueue<>(Comparator.comparingInt(
-                node -> key ^ node.getNODE_ID()
-        ));
+    public void close() {
+        close(true);
+    }
 
-        // Add all nodes from routing table to the priority queue
-        for (List<Triplet> bucket : routingTable.values()) {
-            for (Triplet nodeInfo : bucket) {
-                minHeap.offer(nodeInfo);
-            }
+    /*
+     * Leaves the network. With handOff set our keys move to their new owners
+     * first (see handOffKeys), without it they leave with us, which suits
+     * tearing down a whole network at once.
+     */
+    public void close(boolean handOff) {
+        if (handOff) {
+            handOffKeys();
         }
+        leaving = true;
 
-        // Extract the k closest nodes
-        List<Triplet> kClosestNodes = new ArrayList<>();
-        while (!minHeap.isEmpty() && kClosestNodes.size() < k) {
-            kClosestNodes.add(minHeap.poll());
+        if (dataDir != null) {
+            if (snapshotTask != null) {
+                snapshotTask.cancel(false);
+            }
+            // Save the contacts while they are still current, before anyone hears we're leaving
+            saveRoutingSnapshot();
         }
 
-        return kClosestNodes;
-    }
-
-    public void close() {
-
-        List<Triplet> closestNodes = findKClosestNodesToSelf(K_BUCKET_SIZE);
-        for (Triplet node : closestNodes) {
+        // Everyone who knows us should drop us now rather than time out on us later
+        for (Triplet node : routingTable.contacts()) {
             sendGoodbyeMessage(node);
         }
 
-        try {
-            Thread.sleep(200);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+        if (livenessTask != null) {
+            livenessTask.cancel(false);
+        }
+        if (refreshTask != null) {
+            refreshTask.cancel(false);
         }
 
-        scheduler.shutdown();
-
-        if (socket != null && !socket.isClosed()) {
-            socket.close();
+        if (endpoint != null && endpoint.isOpen()) {
+            endpoint.close();
+        }
+        if (rpc != null) {
+            rpc.close();
         }
+        localStore.close();
     }
 }
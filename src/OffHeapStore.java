@@ -0,0 +1,400 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/*
+ * Default LocalStore, kept entirely in direct memory so a node holding
+ * millions of values adds nothing for the garbage collector to trace.
+ *
+ * The index is an open-addressing table with linear probing, one 32-byte
+ * slot per key:
+ *   key ID:20 | unused:4 | value reference:8
+ * A reference of 0 marks an empty slot and -1 a deleted one. Key IDs are
+ * SHA-1 output, so their low bits pick the home slot directly.
+ *
+ * Values live in 64 KB slabs, each carved into chunks of one power-of-two
+ * size class from 16 bytes up to the whole slab. A chunk holds a 4-byte
+ * length followed by the value. Freed chunks go on a per-class free list
+ * threaded through the chunks themselves and are reused by later values of
+ * the same class, slabs are only given back on close().
+ *
+ * Reads share a read lock and only use absolute buffer accesses, writes
+ * take the write lock.
+ */
+class OffHeapStore implements LocalStore
+{
+    private static final int SLOT_SIZE = 32;
+    private static final int REFERENCE_OFFSET = 24;
+    private static final long EMPTY = 0;
+    private static final long DELETED = -1;
+    private static final int INITIAL_SLOTS = 64;
+
+    private static final int MIN_CHUNK_SHIFT = 4;
+    private static final int SLAB_SHIFT = 16;
+    private static final int SLAB_SIZE = 1 << SLAB_SHIFT;
+    private static final int SIZE_CLASSES = SLAB_SHIFT - MIN_CHUNK_SHIFT + 1;
+    static final int MAX_VALUE_SIZE = SLAB_SIZE - 4;
+
+    private final long capacityBytes;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private ByteBuffer index;
+    private int slotCount;
+    private int size;
+    private int deleted;
+
+    private final List<ByteBuffer> slabs = new ArrayList<>();
+    // Slab each size class is carving new chunks from, and how far it has got
+    private final int[] currentSlab = new int[SIZE_CLASSES];
+    private final int[] slabFill = new int[SIZE_CLASSES];
+    private final long[] freeLists = new long[SIZE_CLASSES];
+    private long usedBytes;
+
+    public OffHeapStore(long capacityBytes)
+    {
+        this.capacityBytes = capacityBytes;
+        reset();
+    }
+
+    @Override
+    public void put(KademliaId key, byte[] value)
+    {
+        if (value.length > MAX_VALUE_SIZE) {
+            throw new IllegalArgumentException("Value of " + value.length + " bytes exceeds " + MAX_VALUE_SIZE);
+        }
+
+        lock.writeLock().lock();
+        try {
+            long reference = allocate(value.length);
+            ByteBuffer slab = slab(reference);
+            int offset = offset(reference);
+            slab.putInt(offset, value.length);
+            slab.put(offset + 4, value);
+
+            int slot = findSlot(key);
+            if (slot >= 0) {
+                free(referenceAt(slot));
+                index.putLong(slot * SLOT_SIZE + REFERENCE_OFFSET, reference);
+                return;
+            }
+
+            if ((size + deleted + 1) * 2 > slotCount) {
+                // Grow when live keys fill the table, otherwise a rehash is enough to clear deleted slots
+                rehash(size * 4 > slotCount ? slotCount * 2 : slotCount);
+            }
+
+            slot = homeSlot(key);
+            while (true) {
+                long existing = referenceAt(slot);
+                if (existing == EMPTY || existing == DELETED) {
+                    if (existing == DELETED) {
+                        deleted--;
+                    }
+                    writeSlot(index, slot, key, reference);
+                    size++;
+                    return;
+                }
+                slot = (slot + 1) & (slotCount - 1);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean putIfRoom(KademliaId key, byte[] value)
+    {
+        lock.writeLock().lock();
+        try {
+            if (!hasRoomFor(value)) {
+                return false;
+            }
+            put(key, value);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public byte[] get(KademliaId key)
+    {
+        lock.readLock().lock();
+        try {
+            int slot = findSlot(key);
+            if (slot < 0) {
+                return null;
+            }
+
+            long reference = referenceAt(slot);
+            ByteBuffer slab = slab(reference);
+            int offset = offset(reference);
+            byte[] value = new byte[slab.getInt(offset)];
+            slab.get(offset + 4, value);
+            return value;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(KademliaId key)
+    {
+        lock.readLock().lock();
+        try {
+            return findSlot(key) >= 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(KademliaId key)
+    {
+        lock.writeLock().lock();
+        try {
+            int slot = findSlot(key);
+            if (slot < 0) {
+                return false;
+            }
+
+            free(referenceAt(slot));
+            index.putLong(slot * SLOT_SIZE + REFERENCE_OFFSET, DELETED);
+            size--;
+            deleted++;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int size()
+    {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long usedBytes()
+    {
+        lock.readLock().lock();
+        try {
+            return usedBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public long capacityBytes()
+    {
+        return capacityBytes;
+    }
+
+    @Override
+    public List<KademliaId> keys()
+    {
+        lock.readLock().lock();
+        try {
+            List<KademliaId> keys = new ArrayList<>(size);
+            for (int slot = 0; slot < slotCount; slot++) {
+                long reference = referenceAt(slot);
+                if (reference != EMPTY && reference != DELETED) {
+                    keys.add(keyAt(index, slot));
+                }
+            }
+            return keys;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void forEachKey(Consumer<KademliaId> action)
+    {
+        lock.readLock().lock();
+        try {
+            for (int slot = 0; slot < slotCount; slot++) {
+                long reference = referenceAt(slot);
+                if (reference != EMPTY && reference != DELETED) {
+                    action.accept(keyAt(index, slot));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Drops every value, the direct memory is released once the old buffers are collected
+    @Override
+    public void close()
+    {
+        lock.writeLock().lock();
+        try {
+            reset();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void reset()
+    {
+        slotCount = INITIAL_SLOTS;
+        index = ByteBuffer.allocateDirect(slotCount * SLOT_SIZE);
+        size = 0;
+        deleted = 0;
+        slabs.clear();
+        Arrays.fill(currentSlab, -1);
+        Arrays.fill(slabFill, 0);
+        Arrays.fill(freeLists, EMPTY);
+        usedBytes = 0;
+    }
+
+    private int homeSlot(KademliaId key)
+    {
+        return key.getLow() & (slotCount - 1);
+    }
+
+    // Slot holding the key, or -1
+    private int findSlot(KademliaId key)
+    {
+        int slot = homeSlot(key);
+        while (true) {
+            long reference = referenceAt(slot);
+            if (reference == EMPTY) {
+                return -1;
+            }
+            if (reference != DELETED && keyMatches(slot, key)) {
+                return slot;
+            }
+            slot = (slot + 1) & (slotCount - 1);
+        }
+    }
+
+    private boolean keyMatches(int slot, KademliaId key)
+    {
+        int position = slot * SLOT_SIZE;
+        return index.getLong(position) == key.getHigh()
+                && index.getLong(position + 8) == key.getMiddle()
+                && index.getInt(position + 16) == key.getLow();
+    }
+
+    private long referenceAt(int slot)
+    {
+        return index.getLong(slot * SLOT_SIZE + REFERENCE_OFFSET);
+    }
+
+    private static KademliaId keyAt(ByteBuffer table, int slot)
+    {
+        int position = slot * SLOT_SIZE;
+        return new KademliaId(table.getLong(position), table.getLong(position + 8), table.getInt(position + 16));
+    }
+
+    private static void writeSlot(ByteBuffer table, int slot, KademliaId key, long reference)
+    {
+        int position = slot * SLOT_SIZE;
+        table.putLong(position, key.getHigh());
+        table.putLong(position + 8, key.getMiddle());
+        table.putInt(position + 16, key.getLow());
+        table.putLong(position + REFERENCE_OFFSET, reference);
+    }
+
+    private void rehash(int newSlotCount)
+    {
+        ByteBuffer oldIndex = index;
+        int oldSlotCount = slotCount;
+
+        index = ByteBuffer.allocateDirect(newSlotCount * SLOT_SIZE);
+        slotCount = newSlotCount;
+        deleted = 0;
+
+        for (int slot = 0; slot < oldSlotCount; slot++) {
+            long reference = oldIndex.getLong(slot * SLOT_SIZE + REFERENCE_OFFSET);
+            if (reference == EMPTY || reference == DELETED) {
+                continue;
+            }
+            KademliaId key = keyAt(oldIndex, slot);
+            int target = homeSlot(key);
+            while (referenceAt(target) != EMPTY) {
+                target = (target + 1) & (slotCount - 1);
+            }
+            writeSlot(index, target, key, reference);
+        }
+    }
+
+    @Override
+    public long entryBytes(int valueLength)
+    {
+        return chunkSize(sizeClass(valueLength));
+    }
+
+    private static int sizeClass(int valueLength)
+    {
+        int chunk = Math.max(valueLength + 4, 1 << MIN_CHUNK_SHIFT);
+        return 32 - Integer.numberOfLeadingZeros(chunk - 1) - MIN_CHUNK_SHIFT;
+    }
+
+    private static int chunkSize(int sizeClass)
+    {
+        return 1 << (sizeClass + MIN_CHUNK_SHIFT);
+    }
+
+    private long allocate(int valueLength)
+    {
+        int sizeClass = sizeClass(valueLength);
+        int chunk = chunkSize(sizeClass);
+        usedBytes += chunk;
+
+        long reference = freeLists[sizeClass];
+        if (reference != EMPTY) {
+            freeLists[sizeClass] = slab(reference).getLong(offset(reference));
+            return reference;
+        }
+
+        if (currentSlab[sizeClass] < 0 || slabFill[sizeClass] + chunk > SLAB_SIZE) {
+            slabs.add(ByteBuffer.allocateDirect(SLAB_SIZE));
+            currentSlab[sizeClass] = slabs.size() - 1;
+            slabFill[sizeClass] = 0;
+        }
+
+        reference = reference(currentSlab[sizeClass], slabFill[sizeClass]);
+        slabFill[sizeClass] += chunk;
+        return reference;
+    }
+
+    private void free(long reference)
+    {
+        ByteBuffer slab = slab(reference);
+        int offset = offset(reference);
+        int sizeClass = sizeClass(slab.getInt(offset));
+        usedBytes -= chunkSize(sizeClass);
+
+        // The freed chunk stores the next link of its class's free list
+        slab.putLong(offset, freeLists[sizeClass]);
+        freeLists[sizeClass] = reference;
+    }
+
+    // Slab numbers are stored one-based so that no reference is ever EMPTY
+    private static long reference(int slabIndex, int offset)
+    {
+        return ((long) (slabIndex + 1) << 32) | offset;
+    }
+
+    private ByteBuffer slab(long reference)
+    {
+        return slabs.get((int) (reference >>> 32) - 1);
+    }
+
+    private static int offset(long reference)
+    {
+        return (int) reference;
+    }
+}
@@ -0,0 +1,126 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Phi-accrual failure detector (Hayashibara et al.). Every message from a
+ * peer counts as a heartbeat. From the recent gaps between a peer's
+ * heartbeats we estimate how likely it is to stay silent as long as it
+ * has, and express that as phi = -log10(P(a gap at least this long)):
+ * phi 1 means a 10% chance that the peer is still alive and merely quiet,
+ * phi 8 one in a hundred million. Instead of giving up on a peer after a
+ * fixed time, the caller decides against a threshold once a request fails.
+ *
+ * The gaps between a peer's messages follow our own traffic to it, so
+ * every peer is allowed an extra acceptable pause on top of its usual gap
+ * before suspicion starts rising.
+ */
+class PhiAccrualDetector
+{
+    static final double DEFAULT_THRESHOLD = 8.0;
+    private static final int MAX_SAMPLES = 100;
+    private static final long MIN_STD_DEVIATION_MILLIS = 500;
+    private static final int MAX_TRACKED_PEERS = 1024;
+
+    private static class History
+    {
+        final long[] intervals = new long[MAX_SAMPLES];
+        int count;
+        int next;
+        double sum;
+        double sumOfSquares;
+        long lastHeartbeat;
+
+        void add(long interval)
+        {
+            if (count == MAX_SAMPLES) {
+                long oldest = intervals[next];
+                sum -= oldest;
+                sumOfSquares -= (double) oldest * oldest;
+            } else {
+                count++;
+            }
+            intervals[next] = interval;
+            next = (next + 1) % MAX_SAMPLES;
+            sum += interval;
+            sumOfSquares += (double) interval * interval;
+        }
+    }
+
+    private final double threshold;
+    private final long acceptablePauseMillis;
+    // Least recently heard peers are forgotten first
+    private final Map<KademliaId, History> histories = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<KademliaId, History> eldest)
+        {
+            return size() > MAX_TRACKED_PEERS;
+        }
+    };
+
+    PhiAccrualDetector(double threshold, long acceptablePauseMillis)
+    {
+        this.threshold = threshold;
+        this.acceptablePauseMillis = acceptablePauseMillis;
+    }
+
+    synchronized void heartbeat(KademliaId peer)
+    {
+        long now = System.currentTimeMillis();
+        History history = histories.get(peer);
+        if (history == null) {
+            history = new History();
+            histories.put(peer, history);
+        } else {
+            history.add(now - history.lastHeartbeat);
+        }
+        history.lastHeartbeat = now;
+    }
+
+    // Suspicion that the peer is down, infinite for a peer we have never heard from
+    synchronized double phi(KademliaId peer)
+    {
+        History history = histories.get(peer);
+        if (history == null) {
+            return Double.POSITIVE_INFINITY;
+        }
+
+        double mean = 0;
+        double deviation = MIN_STD_DEVIATION_MILLIS;
+        if (history.count > 0) {
+            mean = history.sum / history.count;
+            double variance = history.sumOfSquares / history.count - mean * mean;
+            deviation = Math.max(Math.sqrt(Math.max(variance, 0)), MIN_STD_DEVIATION_MILLIS);
+        }
+        long silence = System.currentTimeMillis() - history.lastHeartbeat;
+        return phi(silence, mean + acceptablePauseMillis, deviation);
+    }
+
+    // How long the peer has been silent, Long.MAX_VALUE if we have never heard from it
+    synchronized long millisSinceHeard(KademliaId peer)
+    {
+        History history = histories.get(peer);
+        return history == null ? Long.MAX_VALUE : System.currentTimeMillis() - history.lastHeartbeat;
+    }
+
+    boolean isSuspected(KademliaId peer)
+    {
+        return phi(peer) >= threshold;
+    }
+
+    // The peer left or was removed, start over if it comes back
+    synchronized void remove(KademliaId peer)
+    {
+        histories.remove(peer);
+    }
+
+    // -log10 of the normal tail probability, using the logistic approximation of the CDF
+    private static double phi(long silence, double mean, double deviation)
+    {
+        double y = (silence - mean) / deviation;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if (silence > mean) {
+            return -Math.log10(e / (1.0 + e));
+        }
+        return -Math.log10(1.0 - 1.0 / (1.0 + e));
+    }
+}
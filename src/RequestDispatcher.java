@@ -0,0 +1,75 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/*
+ * Hands inbound requests whose handlers may block (stores that split the
+ * table, for instance) to a thread-per-request executor, so the event loop
+ * keeps answering cheap requests meanwhile. Each node caps how many of its
+ * requests may be in flight; past the cap dispatch() refuses the request and
+ * the caller answers it as busy instead of queueing it.
+ *
+ * Requests run on virtual threads when the runtime has them (Java 21+). The
+ * project targets Java 17, so the executor is looked up reflectively and
+ * falls back to the given platform-thread executor.
+ */
+class RequestDispatcher
+{
+    private static final ExecutorService VIRTUAL_THREADS = newVirtualThreadExecutor();
+
+    private final Executor executor;
+    private final Semaphore permits;
+    private final int maxInFlight;
+
+    public RequestDispatcher(Executor fallback, int maxInFlight)
+    {
+        this.executor = VIRTUAL_THREADS != null ? VIRTUAL_THREADS : fallback;
+        this.permits = new Semaphore(maxInFlight);
+        this.maxInFlight = maxInFlight;
+    }
+
+    // Returns false, without running the task, when the in-flight limit is reached
+    public boolean dispatch(Runnable task)
+    {
+        if (!permits.tryAcquire()) {
+            return false;
+        }
+
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    permits.release();
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            return false;
+        }
+    }
+
+    public int inFlight()
+    {
+        return maxInFlight - permits.availablePermits();
+    }
+
+    public static boolean usesVirtualThreads()
+    {
+        return VIRTUAL_THREADS != null;
+    }
+
+    private static ExecutorService newVirtualThreadExecutor()
+    {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * On-disk copy of a node's routing table, so a restarted node can rejoin
+ * through the contacts it already knew instead of starting from nothing.
+ *
+ * Format:
+ *   version:1 | count:4 | count * contact record (as in WireCodec)
+ *
+ * The file is written to a temporary name and renamed into place, so a
+ * crash mid-write leaves the previous snapshot intact.
+ */
+final class RoutingSnapshot
+{
+    private static final byte VERSION = 1;
+
+    private RoutingSnapshot() {}
+
+    static void save(File file, List<Triplet> contacts) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 4 + contacts.size() * WireCodec.CONTACT_SIZE);
+        buffer.put(VERSION);
+        buffer.putInt(contacts.size());
+        for (Triplet contact : contacts) {
+            WireCodec.putContact(buffer, contact);
+        }
+
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+
+        File temporary = new File(file.getPath() + ".tmp");
+        Files.write(temporary.toPath(), buffer.array());
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // The saved contacts, or an empty list if there is no snapshot yet
+    static List<Triplet> load(File file) throws IOException
+    {
+        List<Triplet> contacts = new ArrayList<>();
+        if (!file.isFile()) {
+            return contacts;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        try {
+            byte version = buffer.get();
+            if (version != VERSION) {
+                throw new ProtocolException("Unsupported routing snapshot version " + version);
+            }
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                contacts.add(WireCodec.getContact(buffer));
+            }
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Truncated routing snapshot " + file);
+        }
+        return contacts;
+    }
+}
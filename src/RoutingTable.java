@@ -0,0 +1,284 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * The k-bucket routing table of one node: a fixed array of 160 buckets,
+ * bucket i holding contacts whose highest bit differing from our ID is bit
+ * i. Each bucket is an immutable snapshot swapped in with compareAndSet, so
+ * readers never lock and always see a consistent bucket, and concurrent
+ * updates from the receive loop, the ping scheduler and lookups simply
+ * retry against each other.
+ *
+ * Buckets are ordered least-recently seen first. Seeing a contact again
+ * moves it to the tail, and a full bucket never drops a contact on its own:
+ * newcomers wait in the bucket's replacement cache while the caller probes
+ * the head, and are promoted only once a contact is removed as dead.
+ *
+ * closest() visits buckets in order of XOR distance to the target. Every
+ * bucket covers one contiguous range of distances to any target, so once
+ * k contacts have been collected no later bucket can hold a closer one and
+ * the search stops, doing work in proportion to k rather than table size.
+ */
+class RoutingTable
+{
+    private static final Triplet[] NONE = new Triplet[0];
+    private static final Bucket EMPTY = new Bucket(NONE, NONE);
+
+    private final KademliaId selfId;
+    private final int bucketSize;
+    private final AtomicReferenceArray<Bucket> buckets = new AtomicReferenceArray<>(KademliaId.BITS);
+
+    public RoutingTable(KademliaId selfId, int bucketSize)
+    {
+        this.selfId = selfId;
+        this.bucketSize = bucketSize;
+        for (int i = 0; i < KademliaId.BITS; i++) {
+            buckets.set(i, EMPTY);
+        }
+    }
+
+    // Index of the highest bit in which the ID differs from ours, our own ID goes to the highest bucket
+    public int bucketIndex(KademliaId nodeId)
+    {
+        int commonPrefix = selfId.commonPrefixLength(nodeId);
+        if (commonPrefix == KademliaId.BITS) return KademliaId.BITS - 1;
+        return KademliaId.BITS - 1 - commonPrefix;
+    }
+
+    /*
+     * Records that the contact was seen. Returns null when it was added or
+     * moved to the tail of its bucket. When the bucket is full the contact
+     * goes to the replacement cache instead, and the bucket's least-recently
+     * seen contact is returned so the caller can probe it before evicting.
+     */
+    public Triplet add(Triplet contact)
+    {
+        KademliaId id = contact.getNODE_ID();
+        if (id.equals(selfId)) {
+            return null;
+        }
+
+        int index = bucketIndex(id);
+        while (true) {
+            Bucket bucket = buckets.get(index);
+            Bucket updated;
+            Triplet leastRecentlySeen = null;
+
+            int position = indexOf(bucket.contacts, id);
+            if (position >= 0) {
+                if (position == bucket.contacts.length - 1) {
+                    return null; // Already the most recently seen
+                }
+                // Keep the existing contact, only its place in the bucket changes
+                updated = new Bucket(moveToTail(bucket.contacts, position), bucket.replacements);
+            } else if (bucket.contacts.length < bucketSize) {
+                updated = new Bucket(append(bucket.contacts, contact), without(bucket.replacements, id));
+            } else {
+                Triplet[] replacements = without(bucket.replacements, id);
+                if (replacements.length >= bucketSize) {
+                    // The cache is LRU too, the stalest candidate makes way
+                    replacements = Arrays.copyOfRange(replacements, 1, replacements.length);
+                }
+                updated = new Bucket(bucket.contacts, append(replacements, contact));
+                leastRecentlySeen = bucket.contacts[0];
+            }
+
+            if (buckets.compareAndSet(index, bucket, updated)) {
+                return leastRecentlySeen;
+            }
+        }
+    }
+
+    // Removes a dead contact, promoting the most recently seen replacement in its place
+    public boolean remove(KademliaId nodeId)
+    {
+        int index = bucketIndex(nodeId);
+        while (true) {
+            Bucket bucket = buckets.get(index);
+            int position = indexOf(bucket.contacts, nodeId);
+            if (position < 0) {
+                return false;
+            }
+
+            Triplet[] contacts = without(bucket.contacts, nodeId);
+            Triplet[] replacements = bucket.replacements;
+            if (replacements.length > 0) {
+                contacts = append(contacts, replacements[replacements.length - 1]);
+                replacements = Arrays.copyOf(replacements, replacements.length - 1);
+            }
+
+            if (buckets.compareAndSet(index, bucket, new Bucket(contacts, replacements))) {
+                return true;
+            }
+        }
+    }
+
+    public boolean contains(KademliaId nodeId)
+    {
+        return indexOf(buckets.get(bucketIndex(nodeId)).contacts, nodeId) >= 0;
+    }
+
+    // Snapshot of one bucket, least-recently seen contact first
+    public List<Triplet> getBucket(int index)
+    {
+        return Arrays.asList(buckets.get(index).contacts);
+    }
+
+    public List<Triplet> getReplacements(int index)
+    {
+        return Arrays.asList(buckets.get(index).replacements);
+    }
+
+    /*
+     * The k contacts closest to target by XOR distance, closest first.
+     *
+     * With d = selfId ^ target and b its highest set bit, contacts in bucket
+     * b are closest (they share bit b with the target), then the lower
+     * buckets: walking down from b - 1, bucket j lies below every bucket
+     * under it when bit j of d is set and above them all when it is clear.
+     * The buckets above b come last, nearest first.
+     */
+    public List<Triplet> closest(KademliaId target, int k)
+    {
+        List<Triplet> result = new ArrayList<>(k);
+        int highestBit = KademliaId.BITS - 1 - selfId.commonPrefixLength(target);
+
+        if (highestBit >= 0 && collect(highestBit, target, k, result)) {
+            return result;
+        }
+        for (int j = highestBit - 1; j >= 0; j--) {
+            if (selfId.testBit(j) != target.testBit(j) && collect(j, target, k, result)) {
+                return result;
+            }
+        }
+        for (int j = 0; j < highestBit; j++) {
+            if (selfId.testBit(j) == target.testBit(j) && collect(j, target, k, result)) {
+                return result;
+            }
+        }
+        for (int j = Math.max(highestBit + 1, 0); j < KademliaId.BITS; j++) {
+            if (collect(j, target, k, result)) {
+                return result;
+            }
+        }
+        return result;
+    }
+
+    // Snapshot of every contact, bucket by bucket
+    public List<Triplet> contacts()
+    {
+        List<Triplet> contacts = new ArrayList<>();
+        for (int i = 0; i < KademliaId.BITS; i++) {
+            contacts.addAll(Arrays.asList(buckets.get(i).contacts));
+        }
+        return contacts;
+    }
+
+    public int size()
+    {
+        int size = 0;
+        for (int i = 0; i < KademliaId.BITS; i++) {
+            size += buckets.get(i).contacts.length;
+        }
+        return size;
+    }
+
+    // Index of the non-empty bucket closest to us, or -1 if the table is empty
+    public int lowestNonEmptyBucket()
+    {
+        for (int i = 0; i < KademliaId.BITS; i++) {
+            if (buckets.get(i).contacts.length > 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int nonEmptyBuckets()
+    {
+        int count = 0;
+        for (int i = 0; i < KademliaId.BITS; i++) {
+            if (buckets.get(i).contacts.length > 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public boolean isEmpty()
+    {
+        return size() == 0;
+    }
+
+    // Adds the bucket's contacts in distance order, returns true once result holds k contacts
+    private boolean collect(int index, KademliaId target, int k, List<Triplet> result)
+    {
+        Triplet[] bucket = buckets.get(index).contacts;
+        if (bucket.length == 0) {
+            return result.size() >= k;
+        }
+
+        Triplet[] sorted = bucket.clone();
+        Arrays.sort(sorted, (a, b) -> KademliaId.compareDistance(target, a.getNODE_ID(), b.getNODE_ID()));
+        for (Triplet contact : sorted) {
+            if (result.size() >= k) {
+                break;
+            }
+            result.add(contact);
+        }
+        return result.size() >= k;
+    }
+
+    private static Triplet[] append(Triplet[] contacts, Triplet contact)
+    {
+        Triplet[] updated = Arrays.copyOf(contacts, contacts.length + 1);
+        updated[contacts.length] = contact;
+        return updated;
+    }
+
+    private static Triplet[] moveToTail(Triplet[] contacts, int position)
+    {
+        Triplet[] updated = new Triplet[contacts.length];
+        System.arraycopy(contacts, 0, updated, 0, position);
+        System.arraycopy(contacts, position + 1, updated, position, contacts.length - position - 1);
+        updated[contacts.length - 1] = contacts[position];
+        return updated;
+    }
+
+    private static Triplet[] without(Triplet[] contacts, KademliaId nodeId)
+    {
+        int position = indexOf(contacts, nodeId);
+        if (position < 0) {
+            return contacts;
+        }
+        Triplet[] updated = new Triplet[contacts.length - 1];
+        System.arraycopy(contacts, 0, updated, 0, position);
+        System.arraycopy(contacts, position + 1, updated, position, updated.length - position);
+        return updated;
+    }
+
+    private static int indexOf(Triplet[] bucket, KademliaId nodeId)
+    {
+        for (int i = 0; i < bucket.length; i++) {
+            if (bucket[i].getNODE_ID().equals(nodeId)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Live contacts and replacement candidates, both least-recently seen first
+    private static final class Bucket
+    {
+        final Triplet[] contacts;
+        final Triplet[] replacements;
+
+        Bucket(Triplet[] contacts, Triplet[] replacements)
+        {
+            this.contacts = contacts;
+            this.replacements = replacements;
+        }
+    }
+}
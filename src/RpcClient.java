@@ -0,0 +1,197 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+/*
+ * Request/response multiplexing over a node's single bound UDP endpoint.
+ * Every outbound request gets a fresh transaction ID and a pending future,
+ * the node's receive loop hands replies back through complete(), which
+ * routes them to the waiting future by transaction ID. Any number of
+ * requests can be in flight at once without opening another socket.
+ *
+ * Lost datagrams are retransmitted. Each peer has an RttEstimator, and a
+ * request that goes unanswered for the peer's retransmission timeout is
+ * sent again with the same transaction ID, waiting twice as long each
+ * time, up to MAX_RETRANSMITS times or the caller's time limit. Peers we
+ * have never heard from start from the estimate across all peers.
+ */
+class RpcClient
+{
+    static final int MAX_RETRANSMITS = 3;
+    private static final int MAX_TRACKED_PEERS = 1024;
+
+    private static class Call
+    {
+        final CompletableFuture<Message> future = new CompletableFuture<>();
+        final RttEstimator rtt;
+        final long sentAt = System.nanoTime();
+        volatile int retransmits;
+
+        Call(RttEstimator rtt)
+        {
+            this.rtt = rtt;
+        }
+    }
+
+    private final UdpTransport.Endpoint endpoint;
+    private final ScheduledExecutorService scheduler;
+    private final Map<Integer, Call> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger transactionCounter = new AtomicInteger(new Random().nextInt());
+
+    // Least recently used peers are forgotten first
+    private final Map<KademliaId, RttEstimator> peerRtts = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<KademliaId, RttEstimator> eldest)
+        {
+            return size() > MAX_TRACKED_PEERS;
+        }
+    };
+    // Every sample from every peer, the starting point for peers without samples of their own
+    private final RttEstimator networkRtt = new RttEstimator();
+
+    RpcClient(UdpTransport.Endpoint endpoint, ScheduledExecutorService scheduler)
+    {
+        this.endpoint = endpoint;
+        this.scheduler = scheduler;
+    }
+
+    // The peer's round-trip estimate, shared by every contact object for it that passes through here
+    RttEstimator rttFor(Triplet peer)
+    {
+        RttEstimator rtt;
+        synchronized (peerRtts) {
+            rtt = peerRtts.computeIfAbsent(peer.getNODE_ID(), id -> new RttEstimator());
+        }
+        peer.setRtt(rtt);
+        return rtt;
+    }
+
+    /*
+     * Sends a request built by the encoder (which receives the transaction ID)
+     * and returns a future for the reply. The request is retransmitted while
+     * unanswered, and the future fails with a TimeoutException once the
+     * retransmissions are used up or timeoutMillis has passed, whichever
+     * comes first.
+     */
+    CompletableFuture<Message> send(Triplet target, IntFunction<ByteBuffer> encoder, long timeoutMillis)
+    {
+        int transactionId = transactionCounter.incrementAndGet();
+        // Encoded before the call is registered, so an encoder that throws leaves nothing pending.
+        // The encoder writes into a per-thread buffer, keep a copy for retransmissions
+        ByteBuffer encoded = encoder.apply(transactionId);
+        byte[] packet = new byte[encoded.position()];
+        encoded.flip().get(packet);
+
+        Call call = new Call(rttFor(target));
+        pending.put(transactionId, call);
+        call.future.whenComplete((reply, error) -> pending.remove(transactionId));
+
+        try {
+            transmit(target, packet);
+        } catch (IOException e) {
+            call.future.completeExceptionally(e);
+            return call.future;
+        }
+
+        long rto = call.rtt.sampleCount() > 0 ? call.rtt.rtoNanos() : networkRtt.rtoNanos();
+        scheduleRetransmit(call, target, packet, rto, TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+        return call.future;
+    }
+
+    private void scheduleRetransmit(Call call, Triplet target, byte[] packet, long delayNanos, long timeoutNanos)
+    {
+        long remaining = timeoutNanos - (System.nanoTime() - call.sentAt);
+        scheduler.schedule(() -> {
+            if (call.future.isDone()) {
+                return;
+            }
+            long elapsed = System.nanoTime() - call.sentAt;
+            if (call.retransmits >= MAX_RETRANSMITS || elapsed >= timeoutNanos) {
+                call.rtt.timedOut();
+                call.future.completeExceptionally(new TimeoutException("No reply from " + target.getNODE_ID().toShortHex()));
+                return;
+            }
+
+            call.retransmits++;
+            try {
+                transmit(target, packet);
+            } catch (IOException e) {
+                call.future.completeExceptionally(e);
+                return;
+            }
+            scheduleRetransmit(call, target, packet, Math.min(delayNanos * 2, RttEstimator.MAX_RTO_NANOS), timeoutNanos);
+        }, Math.max(0, Math.min(delayNanos, remaining)), TimeUnit.NANOSECONDS);
+    }
+
+    /*
+     * Blocking form of send(). Returns null when the peer did not answer in
+     * time, send failures are rethrown as IOException.
+     */
+    Message call(Triplet target, IntFunction<ByteBuffer> encoder, long timeoutMillis) throws IOException
+    {
+        try {
+            return send(target, encoder, timeoutMillis).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TimeoutException) {
+                return null;
+            }
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    // Fire-and-forget message that expects no reply
+    void post(Triplet target, IntFunction<ByteBuffer> encoder) throws IOException
+    {
+        endpoint.send(encoder.apply(transactionCounter.incrementAndGet()), target.getSocketAddress());
+    }
+
+    // Routes a reply to its waiting request. Returns false for unknown or expired transactions.
+    boolean complete(Message reply)
+    {
+        Call call = pending.get(reply.transactionId);
+        if (call == null) {
+            return false;
+        }
+        if (call.retransmits == 0) {
+            long rtt = System.nanoTime() - call.sentAt;
+            call.rtt.sample(rtt);
+            networkRtt.sample(rtt);
+        }
+        return call.future.complete(reply);
+    }
+
+    int inFlight()
+    {
+        return pending.size();
+    }
+
+    void close()
+    {
+        IOException closed = new IOException("RPC client closed");
+        for (Call call : pending.values()) {
+            call.future.completeExceptionally(closed);
+        }
+        pending.clear();
+    }
+
+    private void transmit(Triplet target, byte[] packet) throws IOException
+    {
+        endpoint.send(ByteBuffer.wrap(packet).position(packet.length), target.getSocketAddress());
+    }
+}
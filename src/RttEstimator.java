@@ -0,0 +1,75 @@
+/*
+ * Round-trip time estimate for one peer, kept the way TCP does it
+ * (Jacobson/Karels, as in RFC 6298): a smoothed RTT and a smoothed mean
+ * deviation, each sample moving them by 1/8 and 1/4 of the error. The
+ * retransmission timeout is the smoothed RTT plus four deviations, and is
+ * doubled for every request that times out until the next sample comes in.
+ * Only replies to requests that were never retransmitted are sampled, a
+ * reply to a retransmitted one can't be matched to a send time (Karn).
+ */
+class RttEstimator
+{
+    static final long MIN_RTO_NANOS = 10_000_000L;
+    static final long MAX_RTO_NANOS = 5_000_000_000L;
+    // Used before the first sample
+    static final long INITIAL_RTO_NANOS = 1_000_000_000L;
+
+    private long smoothedRtt;
+    private long rttVariance;
+    private long rto = INITIAL_RTO_NANOS;
+    private int samples;
+
+    synchronized void sample(long rttNanos)
+    {
+        if (samples == 0) {
+            smoothedRtt = rttNanos;
+            rttVariance = rttNanos / 2;
+        } else {
+            rttVariance += (Math.abs(smoothedRtt - rttNanos) - rttVariance) / 4;
+            smoothedRtt += (rttNanos - smoothedRtt) / 8;
+        }
+        samples++;
+        rto = clamp(smoothedRtt + 4 * rttVariance);
+    }
+
+    // A request to the peer went unanswered, back off until it answers again
+    synchronized void timedOut()
+    {
+        rto = clamp(rto * 2);
+    }
+
+    synchronized long rtoNanos()
+    {
+        return rto;
+    }
+
+    // Smoothed RTT in nanoseconds, or -1 before the first sample
+    synchronized long smoothedRttNanos()
+    {
+        return samples == 0 ? -1 : smoothedRtt;
+    }
+
+    synchronized long rttVarianceNanos()
+    {
+        return samples == 0 ? -1 : rttVariance;
+    }
+
+    synchronized int sampleCount()
+    {
+        return samples;
+    }
+
+    private static long clamp(long rtoNanos)
+    {
+        return Math.max(MIN_RTO_NANOS, Math.min(rtoNanos, MAX_RTO_NANOS));
+    }
+
+    @Override
+    public synchronized String toString()
+    {
+        if (samples == 0) {
+            return "rtt unknown";
+        }
+        return String.format("rtt %.2f ms +/- %.2f ms", smoothedRtt / 1e6, rttVariance / 1e6);
+    }
+}
@@ -0,0 +1,377 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+/*
+ * Append-only, memory-mapped write-ahead log for a node's key store.
+ *
+ * The log is a series of fixed-size segment files, each mapped in full and
+ * filled with records:
+ *   type:1 | key ID:20 | value length:4 | value | CRC32 of the preceding bytes:4
+ * A zero type byte (the mapped file's initial contents) ends a segment. When
+ * a record doesn't fit, the segment is forced and sealed and a new one
+ * started.
+ *
+ * Durability uses group commit: append() only copies the record into the
+ * mapping, and the first writer to call awaitDurable() forces the segment
+ * for every record appended so far while later writers wait for it, so a
+ * burst of concurrent stores costs one fsync rather than one each.
+ *
+ * Compaction writes a snapshot of the live keys, snapshot-N.dat, that
+ * stands in for every segment up to N, after which those segments are
+ * deleted. Recovery loads the newest snapshot and replays the segments
+ * after it, stopping at the first torn record.
+ */
+class SegmentLog implements Closeable
+{
+    interface RecordVisitor
+    {
+        void put(KademliaId key, byte[] value);
+
+        void remove(KademliaId key);
+    }
+
+    static final byte PUT = 1;
+    static final byte REMOVE = 2;
+    static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private static final int HEADER_SIZE = 1 + KademliaId.BYTES + 4;
+    private static final int CHECKSUM_SIZE = 4;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".dat";
+
+    private final File directory;
+    private final int segmentSize;
+    private final CRC32 checksum = new CRC32();
+
+    // Guarded by this: bytes written to each sealed segment, by segment number
+    private final TreeMap<Long, Long> sealedSegments = new TreeMap<>();
+    private long sealedBytes;
+    private long activeId;
+    private MappedByteBuffer active;
+    private long appendedSequence;
+
+    // Guarded by commitLock
+    private final Object commitLock = new Object();
+    private long durableSequence;
+    private boolean flushing;
+
+    SegmentLog(File directory, int segmentSize) throws IOException
+    {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create log directory " + directory);
+        }
+    }
+
+    /*
+     * Replays the newest snapshot and every segment written after it, then
+     * opens a fresh segment for new records. Must be called once, before
+     * anything is appended.
+     */
+    synchronized void recover(RecordVisitor visitor) throws IOException
+    {
+        long snapshotId = -1;
+        for (long id : listIds(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX)) {
+            snapshotId = Math.max(snapshotId, id);
+        }
+        if (snapshotId >= 0) {
+            replay(snapshotFile(snapshotId), visitor);
+        }
+
+        long lastId = snapshotId;
+        for (long id : listIds(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+            if (id <= snapshotId) {
+                // Already covered by the snapshot, left behind by an interrupted compaction
+                Files.deleteIfExists(segmentFile(id).toPath());
+                continue;
+            }
+            long bytes = replay(segmentFile(id), visitor);
+            sealedSegments.put(id, bytes);
+            sealedBytes += bytes;
+            lastId = Math.max(lastId, id);
+        }
+
+        // Snapshots an interrupted compaction never finished
+        File[] leftovers = directory.listFiles((dir, name) -> name.startsWith(SNAPSHOT_PREFIX) && name.endsWith(".tmp"));
+        if (leftovers != null) {
+            for (File leftover : leftovers) {
+                Files.deleteIfExists(leftover.toPath());
+            }
+        }
+        deleteStaleFiles(snapshotId);
+        openSegment(lastId + 1);
+    }
+
+    // Copies a record into the active segment and returns its sequence number for awaitDurable()
+    synchronized long append(byte type, KademliaId key, byte[] value) throws IOException
+    {
+        if (active == null) {
+            throw new IOException("Log is closed");
+        }
+
+        int valueLength = value == null ? 0 : value.length;
+        int recordSize = HEADER_SIZE + valueLength + CHECKSUM_SIZE;
+        if (recordSize > segmentSize) {
+            throw new IOException("Record of " + recordSize + " bytes exceeds the segment size");
+        }
+        if (active.remaining() < recordSize) {
+            roll();
+        }
+
+        int start = active.position();
+        active.put(type);
+        key.writeTo(active);
+        active.putInt(valueLength);
+        if (value != null) {
+            active.put(value);
+        }
+
+        checksum.reset();
+        checksum.update(active.duplicate().position(start).limit(active.position()));
+        active.putInt((int) checksum.getValue());
+
+        return ++appendedSequence;
+    }
+
+    // Returns once every record up to the given sequence number is on disk
+    void awaitDurable(long sequence) throws IOException
+    {
+        while (true) {
+            synchronized (commitLock) {
+                while (flushing && durableSequence < sequence) {
+                    try {
+                        commitLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted waiting for the log to be flushed");
+                    }
+                }
+                if (durableSequence >= sequence) {
+                    return;
+                }
+                flushing = true;
+            }
+
+            // This thread leads the next group commit
+            long target;
+            MappedByteBuffer segment;
+            synchronized (this) {
+                target = appendedSequence;
+                segment = active;
+            }
+
+            boolean forced = false;
+            try {
+                if (segment != null) {
+                    segment.force();
+                }
+                forced = true; // A closed log was forced on close
+            } finally {
+                synchronized (commitLock) {
+                    flushing = false;
+                    if (forced) {
+                        durableSequence = Math.max(durableSequence, target);
+                    }
+                    commitLock.notifyAll();
+                }
+            }
+        }
+    }
+
+    synchronized long sealedBytes()
+    {
+        return sealedBytes;
+    }
+
+    // Seals the active segment for compaction and returns its number
+    synchronized long seal() throws IOException
+    {
+        if (active == null) {
+            throw new IOException("Log is closed");
+        }
+        roll();
+        return activeId - 1;
+    }
+
+    /*
+     * Replaces every segment up to snapshotId, as returned by seal(), with a
+     * snapshot of the entries the source yields. The source must already
+     * reflect every record in those segments. Records appended while the
+     * snapshot is being written land in later segments and are replayed
+     * after it, so the source may keep changing meanwhile.
+     */
+    void writeSnapshot(long snapshotId, Iterable<KademliaId> keys, Function<KademliaId, byte[]> values) throws IOException
+    {
+        File temporary = new File(directory, SNAPSHOT_PREFIX + format(snapshotId) + ".tmp");
+        CRC32 snapshotChecksum = new CRC32();
+        try (FileOutputStream file = new FileOutputStream(temporary);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            for (KademliaId key : keys) {
+                byte[] value = values.apply(key);
+                if (value == null) {
+                    continue; // Removed since the key list was taken
+                }
+                header.clear();
+                header.put(PUT);
+                key.writeTo(header);
+                header.putInt(value.length);
+
+                snapshotChecksum.reset();
+                snapshotChecksum.update(header.array(), 0, HEADER_SIZE);
+                snapshotChecksum.update(value);
+                out.write(header.array(), 0, HEADER_SIZE);
+                out.write(value);
+                out.writeInt((int) snapshotChecksum.getValue());
+            }
+            out.flush();
+            file.getFD().sync();
+        }
+        Files.move(temporary.toPath(), snapshotFile(snapshotId).toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+        synchronized (this) {
+            while (!sealedSegments.isEmpty() && sealedSegments.firstKey() <= snapshotId) {
+                sealedBytes -= sealedSegments.pollFirstEntry().getValue();
+            }
+        }
+        deleteStaleFiles(snapshotId);
+    }
+
+    @Override
+    public synchronized void close()
+    {
+        if (active != null) {
+            active.force();
+            // The mapping itself is released once the buffer is collected
+            active = null;
+        }
+    }
+
+    // Forces and seals the active segment and starts the next one. Caller holds the monitor.
+    private void roll() throws IOException
+    {
+        active.force();
+        sealedSegments.put(activeId, (long) active.position());
+        sealedBytes += active.position();
+        openSegment(activeId + 1);
+    }
+
+    private void openSegment(long id) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(segmentFile(id).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            active = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+        activeId = id;
+    }
+
+    // Applies every intact record in the file, returns the number of bytes they take
+    private static long replay(File file, RecordVisitor visitor) throws IOException
+    {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        CRC32 recordChecksum = new CRC32();
+        while (buffer.remaining() >= HEADER_SIZE + CHECKSUM_SIZE) {
+            int start = buffer.position();
+            byte type = buffer.get();
+            if (type != PUT && type != REMOVE) {
+                break; // End of the written part of the segment
+            }
+
+            KademliaId key = KademliaId.readFrom(buffer);
+            int valueLength = buffer.getInt();
+            if (valueLength < 0 || buffer.remaining() < valueLength + CHECKSUM_SIZE) {
+                System.err.println("Truncated record in " + file.getName() + " at offset " + start);
+                break;
+            }
+
+            byte[] value = new byte[valueLength];
+            buffer.get(value);
+            recordChecksum.reset();
+            recordChecksum.update(buffer.duplicate().position(start).limit(buffer.position()));
+            if ((int) recordChecksum.getValue() != buffer.getInt()) {
+                // A write torn by a crash, nothing after it was acknowledged
+                System.err.println("Corrupt record in " + file.getName() + " at offset " + start);
+                break;
+            }
+
+            if (type == PUT) {
+                visitor.put(key, value);
+            } else {
+                visitor.remove(key);
+            }
+        }
+        return buffer.position();
+    }
+
+    private void deleteStaleFiles(long snapshotId) throws IOException
+    {
+        for (long id : listIds(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+            if (id <= snapshotId) {
+                Files.deleteIfExists(segmentFile(id).toPath());
+            }
+        }
+        for (long id : listIds(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX)) {
+            if (id < snapshotId) {
+                Files.deleteIfExists(snapshotFile(id).toPath());
+            }
+        }
+    }
+
+    private List<Long> listIds(String prefix, String suffix)
+    {
+        List<Long> ids = new ArrayList<>();
+        String[] names = directory.list();
+        if (names == null) {
+            return ids;
+        }
+        for (String name : names) {
+            if (name.startsWith(prefix) && name.endsWith(suffix)) {
+                try {
+                    ids.add(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())));
+                } catch (NumberFormatException e) {
+                    // Not one of ours
+                }
+            }
+        }
+        ids.sort(null);
+        return ids;
+    }
+
+    private File segmentFile(long id)
+    {
+        return new File(directory, SEGMENT_PREFIX + format(id) + SEGMENT_SUFFIX);
+    }
+
+    private File snapshotFile(long id)
+    {
+        return new File(directory, SNAPSHOT_PREFIX + format(id) + SNAPSHOT_SUFFIX);
+    }
+
+    private static String format(long id)
+    {
+        return String.format("%016d", id);
+    }
+}
@@ -1,4 +1,10 @@
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 public class Test {
     public static void main(String[] args) {
         System.out.println("=== STARTING COMPREHENSIVE DHT NETWORK TEST ===");
@@ -56,16 +62,16 @@ public class Test {
             // Test key lookups
             System.out.println("\nLooking up keys:");
             for (int key : testKeys) {
-                int foundAt = simulator.findKey(key);
+                KademliaId foundAt = simulator.findKey(key);
                 System.out.println("Key " + key + " lookup result: " +
-                        (foundAt != -1 ? "Found at Node " + foundAt : "Not found"));
+                        (foundAt != null ? "Found at Node " + foundAt : "Not found"));
             }
 
             // Test lookup for non-existent key
             int nonExistentKey = 999;
-            int foundAt = simulator.findKey(nonExistentKey);
+            KademliaId foundAt = simulator.findKey(nonExistentKey);
             System.out.println("Non-existent key " + nonExistentKey + " lookup result: " +
-                    (foundAt != -1 ? "Found at Node " + foundAt : "Not found (expected)"));
+                    (foundAt != null ? "Found at Node " + foundAt : "Not found (expected)"));
 
             // Section 4: Network Dynamics - Adding Nodes
             System.out.println("\n=== 4. NETWORK DYNAMICS - ADDING NODES ===");
@@ -92,7 +98,7 @@ public class Test {
             for (int key : testKeys) {
                 foundAt = simulator.findKey(key);
                 System.out.println("Key " + key + " lookup result: " +
-                        (foundAt != -1 ? "Found at Node " + foundAt : "Not found"));
+                        (foundAt != null ? "Found at Node " + foundAt : "Not found"));
             }
 
             // Section 5: Network Dynamics - Removing Nodes
@@ -114,7 +120,7 @@ public class Test {
             for (int key : testKeys) {
                 foundAt = simulator.findKey(key);
                 System.out.println("Key " + key + " lookup result: " +
-                        (foundAt != -1 ? "Found at Node " + foundAt : "Not found"));
+                        (foundAt != null ? "Found at Node " + foundAt : "Not found"));
             }
 
             // Section 6: Node Lookup Testing
@@ -170,7 +176,7 @@ public class Test {
             System.out.println("Testing finding a key in empty network...");
             foundAt = emptySimulator.findKey(42);
             System.out.println("Key 42 lookup result in empty network: " +
-                    (foundAt != -1 ? "Found at Node " + foundAt : "Not found (expected)"));
+                    (foundAt != null ? "Found at Node " + foundAt : "Not found (expected)"));
 
             // Section 9: Final Network State
             System.out.println("\n=== 9. FINAL NETWORK STATE ===");
@@ -240,9 +246,23 @@ public class Test {
             // Test lookup for all keys
             System.out.println("\nVerifying all keys are still accessible:");
             for (int i = 0; i < 50; i++) {
-                int foundAtNode = capacitySimulator.findKey(1+i);
+                KademliaId foundAtNode = capacitySimulator.findKey(1+i);
                 System.out.println("Key " + (i+1) + " lookup result: " +
-                        (foundAtNode != -1 ? "Found at Node " + foundAtNode : "Not found"));
+                        (foundAtNode != null ? "Found at Node " + foundAtNode : "Not found"));
+            }
+
+            // The same keys again in one batch, see Node.findKeys()
+            System.out.println("\nVerifying all keys with a single batch lookup:");
+            List<Integer> allKeys = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                allKeys.add(1+i);
+            }
+            Map<Integer, KademliaId> foundAt = capacitySimulator.findKeys(allKeys);
+            System.out.println("Batch lookup found " + foundAt.size() + " of " + allKeys.size() + " keys");
+            for (int i = 0; i < 50; i++) {
+                if (!foundAt.containsKey(1+i)) {
+                    System.out.println("Key " + (i+1) + " batch lookup result: Not found");
+                }
             }
 
             // Add more nodes to test redistribution
@@ -263,6 +283,17 @@ public class Test {
 
             capacitySimulator.displayNetworkState();
 
+            // Bulk-load another round of keys, see Node.storeValues()
+            System.out.println("\nBulk-loading more keys...");
+            List<Integer> bulkKeys = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                bulkKeys.add(500+i);
+            }
+            System.out.println("Adding keys: " + bulkKeys);
+            capacitySimulator.addKeys(bulkKeys);
+
+            capacitySimulator.displayNetworkState();
+
             // Display updated hash tables
             System.out.println("\nHash tables after redistribution:");
             for (Node node : capacitySimulator.getNodes()) {
@@ -292,7 +323,7 @@ public class Test {
             System.out.println("\nFinal hash tables after capacity test:");
             for (Node node : capacitySimulator.getNodes()) {
                 System.out.println("\nNode ID: " + node.getNodeInformation().getNODE_ID() +
-                        " Hash Table Size: " + node.getHashTable().size());
+                        " Hash Table Size: " + node.getLocalStore().size());
                 node.displayHashTable();
             }
 
@@ -302,6 +333,90 @@ public class Test {
 
             System.out.println("\n=== HASH TABLE CAPACITY TEST COMPLETED ===");
 
+            System.out.println("\n=== 12. DURABLE STORE RECOVERY TEST ===");
+
+            File dataDir = Files.createTempDirectory("hashgrid-durable").toFile();
+            File storeDir = new File(dataDir, "store");
+            System.out.println("Store directory: " + storeDir);
+
+            // Write values, then overwrite and remove some so recovery has to replay every kind of record
+            Map<KademliaId, byte[]> expected = new LinkedHashMap<>();
+            DurableStore durableStore = new DurableStore(storeDir, 64 * 1024);
+            for (int i = 0; i < 40; i++) {
+                KademliaId keyId = KademliaId.sha1(2000 + i);
+                byte[] value = Node.intValue(2000 + i);
+                durableStore.put(keyId, value);
+                expected.put(keyId, value);
+            }
+            for (int i = 0; i < 10; i++) {
+                KademliaId keyId = KademliaId.sha1(2000 + i);
+                byte[] value = ("overwritten " + i).getBytes();
+                durableStore.put(keyId, value);
+                expected.put(keyId, value);
+            }
+            for (int i = 30; i < 40; i++) {
+                KademliaId keyId = KademliaId.sha1(2000 + i);
+                durableStore.remove(keyId);
+                expected.remove(keyId);
+            }
+            System.out.println("Wrote " + expected.size() + " live values, closing without compacting...");
+            durableStore.close();
+
+            System.out.println("\nReopening the store from its log:");
+            durableStore = new DurableStore(storeDir, 64 * 1024);
+            checkRecoveredValues(durableStore, expected);
+
+            System.out.println("\nCompacting the log into a snapshot...");
+            durableStore.compact();
+            System.out.println("Files after compaction: " + Arrays.toString(storeDir.list()));
+            durableStore.close();
+
+            System.out.println("\nReopening the store from its snapshot:");
+            durableStore = new DurableStore(storeDir, 64 * 1024);
+            checkRecoveredValues(durableStore, expected);
+            durableStore.close();
+
+            deleteDirectory(dataDir);
+
+            // A durable node should come back with both its keys and its contacts
+            System.out.println("\nRestarting a durable node on its data directory:");
+            NetworkSimulator restartSimulator = new NetworkSimulator();
+            restartSimulator.addNode("127.0.0.1", 9301, 10);
+            restartSimulator.addNode("127.0.0.1", 9302, 90);
+            restartSimulator.addNode("127.0.0.1", 9303, 170);
+            restartSimulator.addNode("127.0.0.1", 9304, 250);
+            Thread.sleep(1000);
+
+            File nodeDir = Files.createTempDirectory("hashgrid-node").toFile();
+            KademliaId durableId = KademliaId.ofNodeNumber(130);
+            Node durableNode = new Node("127.0.0.1", 9310, durableId, nodeDir);
+            durableNode.join(restartSimulator.getNodes().get(0).getNodeInformation());
+
+            Map<KademliaId, byte[]> held = new LinkedHashMap<>();
+            for (int i = 0; i < 20; i++) {
+                KademliaId keyId = KademliaId.sha1(3000 + i);
+                byte[] value = Node.intValue(3000 + i);
+                durableNode.getLocalStore().put(keyId, value);
+                held.put(keyId, value);
+            }
+            int contactsBefore = durableNode.getRoutingTable().size();
+            System.out.println("Durable node knows " + contactsBefore + " contacts and holds " +
+                    durableNode.getLocalStore().size() + " keys, stopping it without handing off...");
+            durableNode.close(false);
+
+            // The constructor reloads the routing snapshot and pings the saved contacts before returning
+            durableNode = new Node("127.0.0.1", 9310, durableId, nodeDir);
+            int contactsAfter = durableNode.getRoutingTable().size();
+            System.out.println("Restarted node knows " + contactsAfter + " of " + contactsBefore + " contacts" +
+                    (contactsAfter > 0 ? "" : " (routing table is empty)"));
+            checkRecoveredValues((DurableStore) durableNode.getLocalStore(), held);
+
+            durableNode.close(false);
+            restartSimulator.shutdown();
+            deleteDirectory(nodeDir);
+
+            System.out.println("\n=== DURABLE STORE RECOVERY TEST COMPLETED ===");
+
             System.out.println("\n=== COMPREHENSIVE DHT NETWORK TEST COMPLETED SUCCESSFULLY ===");
 
         } catch (Exception e) {
@@ -309,4 +424,27 @@ public class Test {
             e.printStackTrace();
         }
     }
-}
\ No newline at end of file
+
+    private static void checkRecoveredValues(DurableStore store, Map<KademliaId, byte[]> expected) {
+        int matching = 0;
+        for (Map.Entry<KademliaId, byte[]> entry : expected.entrySet()) {
+            if (Arrays.equals(store.get(entry.getKey()), entry.getValue())) {
+                matching++;
+            } else {
+                System.out.println("Key " + entry.getKey().toShortHex() + " recovery result: Not recovered");
+            }
+        }
+        System.out.println("Recovered " + matching + " of " + expected.size() + " values, store holds " +
+                store.size() + " keys");
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] children = directory.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteDirectory(child);
+            }
+        }
+        directory.delete();
+    }
+}
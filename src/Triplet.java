@@ -1,17 +1,23 @@
+import java.net.InetSocketAddress;
+
 class Triplet
 {
     private String IP_ADDR;
     private int UDP_PORT;
-    private int NODE_ID;
+    private KademliaId NODE_ID;
+    // Resolved lazily and reused for every datagram sent to this contact
+    private InetSocketAddress socketAddress;
+    // Round-trip estimate kept by the node's RPC client, null until the contact has been sent a request
+    private volatile RttEstimator rtt;
 
     public Triplet()
     {
         this.IP_ADDR = null;
         this.UDP_PORT = -1;
-        this.NODE_ID = -1;
+        this.NODE_ID = null;
     }
 
-    public Triplet(String IP_ADDR, int UDP_PORT, int NODE_ID)
+    public Triplet(String IP_ADDR, int UDP_PORT, KademliaId NODE_ID)
     {
         this.IP_ADDR = IP_ADDR;
         this.UDP_PORT = UDP_PORT;
@@ -21,10 +27,22 @@ class Triplet
 
     public String getIP_ADDR() { return IP_ADDR; }
     public int getUDP_PORT() { return UDP_PORT; }
-    public int getNODE_ID() { return NODE_ID; }
+    public KademliaId getNODE_ID() { return NODE_ID; }
+
+    public InetSocketAddress getSocketAddress()
+    {
+        if (socketAddress == null) {
+            socketAddress = new InetSocketAddress(IP_ADDR, UDP_PORT);
+        }
+        return socketAddress;
+    }
+
+    public RttEstimator getRtt() { return rtt; }
+    void setRtt(RttEstimator rtt) { this.rtt = rtt; }
 
     public void display()
     {
-        System.out.println("\t"+IP_ADDR+" "+UDP_PORT+" "+NODE_ID);
+        RttEstimator estimate = rtt;
+        System.out.println("\t"+IP_ADDR+" "+UDP_PORT+" "+NODE_ID+(estimate != null ? " "+estimate : ""));
     }
 }
\ No newline at end of file
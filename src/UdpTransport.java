@@ -0,0 +1,259 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Non-blocking UDP transport shared by many nodes. A small, fixed number of
+ * event-loop threads each own a Selector and serve every DatagramChannel
+ * registered with them, reading datagrams into pooled buffers and handing
+ * them to the endpoint's handler inline. The transport also provides the
+ * timer and worker threads nodes need, so a Node does not own any threads
+ * of its own.
+ */
+class UdpTransport implements Closeable
+{
+    interface PacketHandler
+    {
+        // The packet buffer is only valid for the duration of the call
+        void onPacket(ByteBuffer packet, InetSocketAddress sender);
+    }
+
+    private static final int DEFAULT_EVENT_LOOPS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+    // Bounds how long one busy channel can hold its event loop before the others get a turn
+    private static final int MAX_READS_PER_WAKEUP = 64;
+    private static UdpTransport shared;
+
+    private final EventLoop[] eventLoops;
+    private final AtomicInteger nextEventLoop = new AtomicInteger();
+    private final BufferPool bufferPool;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService workers;
+    private volatile boolean closed = false;
+
+    public UdpTransport(int eventLoopCount)
+    {
+        bufferPool = new BufferPool(WireCodec.MAX_PACKET_SIZE, eventLoopCount * 4);
+        scheduler = Executors.newScheduledThreadPool(1, daemonThreads("udp-timer"));
+        workers = Executors.newCachedThreadPool(daemonThreads("udp-worker"));
+        eventLoops = new EventLoop[eventLoopCount];
+        for (int i = 0; i < eventLoopCount; i++) {
+            try {
+                eventLoops[i] = new EventLoop("udp-event-loop-" + i);
+            } catch (IOException e) {
+                close();
+                throw new RuntimeException("Unable to open selector", e);
+            }
+        }
+    }
+
+    // Transport used by nodes that are not given one explicitly
+    public static synchronized UdpTransport shared()
+    {
+        if (shared == null || shared.closed) {
+            shared = new UdpTransport(DEFAULT_EVENT_LOOPS);
+        }
+        return shared;
+    }
+
+    public Endpoint bind(int port, PacketHandler handler) throws IOException
+    {
+        if (closed) {
+            throw new IOException("Transport is closed");
+        }
+
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        Endpoint endpoint = new Endpoint(channel, handler);
+        EventLoop eventLoop = eventLoops[Math.floorMod(nextEventLoop.getAndIncrement(), eventLoops.length)];
+        eventLoop.register(endpoint);
+        return endpoint;
+    }
+
+    public ScheduledExecutorService scheduler()
+    {
+        return scheduler;
+    }
+
+    // For work that may block, which must never run on an event loop
+    public ExecutorService workers()
+    {
+        return workers;
+    }
+
+    @Override
+    public void close()
+    {
+        closed = true;
+        for (EventLoop eventLoop : eventLoops) {
+            if (eventLoop != null) {
+                eventLoop.selector.wakeup();
+            }
+        }
+        scheduler.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    private static ThreadFactory daemonThreads(String name)
+    {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /*
+     * A bound channel registered with one of the event loops. Sends go
+     * straight to the channel and are safe from any thread.
+     */
+    public static class Endpoint implements Closeable
+    {
+        private final DatagramChannel channel;
+        private final PacketHandler handler;
+        private volatile Selector selector;
+
+        private Endpoint(DatagramChannel channel, PacketHandler handler)
+        {
+            this.channel = channel;
+            this.handler = handler;
+        }
+
+        // Sends the bytes between 0 and the buffer's position, as left by WireCodec
+        public void send(ByteBuffer encoded, InetSocketAddress target) throws IOException
+        {
+            encoded.flip();
+            // A full socket buffer drops the datagram, just like a loss on the wire
+            channel.send(encoded, target);
+        }
+
+        public boolean isOpen()
+        {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close()
+        {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+
+            // The socket is only released once the event loop deregisters the channel on its next select
+            Selector current = selector;
+            if (current != null) {
+                current.wakeup();
+            }
+        }
+    }
+
+    private class EventLoop implements Runnable
+    {
+        private final Selector selector;
+        private final Queue<Endpoint> registrations = new ConcurrentLinkedQueue<>();
+
+        EventLoop(String name) throws IOException
+        {
+            selector = Selector.open();
+            Thread thread = new Thread(this, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        void register(Endpoint endpoint)
+        {
+            registrations.add(endpoint);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run()
+        {
+            while (!closed) {
+                try {
+                    selector.select();
+                    registerPending();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (key.isValid() && key.isReadable()) {
+                            read((Endpoint) key.attachment());
+                        }
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void registerPending() throws IOException
+        {
+            Endpoint endpoint;
+            while ((endpoint = registrations.poll()) != null) {
+                try {
+                    endpoint.channel.register(selector, SelectionKey.OP_READ, endpoint);
+                    endpoint.selector = selector;
+                } catch (ClosedChannelException e) {
+                    // Closed before it was ever registered
+                }
+            }
+        }
+
+        private void read(Endpoint endpoint)
+        {
+            ByteBuffer buffer = bufferPool.acquire();
+            try {
+                for (int i = 0; i < MAX_READS_PER_WAKEUP; i++) {
+                    buffer.clear();
+                    SocketAddress sender = endpoint.channel.receive(buffer);
+                    if (sender == null) {
+                        break;
+                    }
+                    buffer.flip();
+                    try {
+                        endpoint.handler.onPacket(buffer, (InetSocketAddress) sender);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace();
+                    }
+                }
+            } catch (ClosedChannelException e) {
+                // Endpoint closed while we were reading
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                bufferPool.release(buffer);
+            }
+        }
+    }
+}
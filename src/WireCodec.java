@@ -0,0 +1,416 @@
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/*
+ * Binary wire format shared by every node.
+ *
+ * Header (32 bytes):
+ *   version:1 | type:1 | transaction id:4 | sender contact:26
+ *
+ * Contact record (26 bytes):
+ *   IPv4 address:4 | UDP port:2 | node ID:20
+ *
+ * Body, by message type:
+ *   FIND_NODE     target ID:20
+ *   FIND_KEY      key ID:20
+ *   STORE_KEY     key ID:20 | value length:2 | value
+ *   STORED_KEY    key ID:20
+ *   FOUND_KEY     holder contact:26
+ *   CLOSEST_NODES count:2 | count * contact record
+ *   STORE_KEYS    count:2 | count * (key ID:20 | value length:2 | value)
+ *   STORE_KEYS_REPLY
+ *                 count:2 | accepted bitmap:ceil(count / 8) | contact count:2 | contacts
+ *                 Bit i (least significant first) is set when key i was taken. A
+ *                 node that rejected keys offers its closest contacts instead.
+ *   FIND_KEYS     count:2 | count * key ID:20
+ *   FOUND_KEYS    count:2 | held bitmap:ceil(count / 8), laid out as for STORE_KEYS_REPLY
+ *   CACHE_LOCATION
+ *                 key ID:20 | holder contact:26 | TTL in milliseconds:4
+ *   FIND_NEIGHBOURS
+ *                 wanted:2, answered with CLOSEST_NODES holding up to that many of
+ *                 the receiver's contacts closest to the sender
+ *   PULL_KEYS     more:1 | has cursor:1 | cursor key ID:20 | ack count:2 | ack count * key ID:20
+ *                 Asks for the next batch of keys after the cursor that are closer to
+ *                 the sender than to the receiver, acknowledging the previous batch.
+ *   PULLED_KEYS   more:1 | count:2 | count * (key ID:20 | value length:2 | value)
+ *   PING, PONG, GOODBYE carry no body.
+ *
+ * Outgoing messages are written into a per-thread buffer that is reused for
+ * every send, incoming messages are read straight out of the receive buffer.
+ */
+final class WireCodec
+{
+    static final byte VERSION = 8;
+    static final int MAX_PACKET_SIZE = 8192;
+    static final int CONTACT_SIZE = 6 + KademliaId.BYTES;
+    static final int HEADER_SIZE = 6 + CONTACT_SIZE;
+    static final int MAX_CONTACTS = (MAX_PACKET_SIZE - HEADER_SIZE - 2) / CONTACT_SIZE;
+    static final int MAX_VALUE_SIZE = MAX_PACKET_SIZE - HEADER_SIZE - KademliaId.BYTES - 2;
+    // Room for STORE_KEYS entries after the header and count
+    static final int STORE_KEYS_PAYLOAD = MAX_PACKET_SIZE - HEADER_SIZE - 2;
+    static final int MAX_FIND_KEYS = (MAX_PACKET_SIZE - HEADER_SIZE - 2) / KademliaId.BYTES;
+    // Room for PULLED_KEYS entries after the header, flag and count
+    static final int PULLED_KEYS_PAYLOAD = STORE_KEYS_PAYLOAD - 1;
+    static final int MAX_PULL_ACKS = (MAX_PACKET_SIZE - HEADER_SIZE - 2 - KademliaId.BYTES - 2) / KademliaId.BYTES;
+
+    private static final ThreadLocal<ByteBuffer> OUTBOUND =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(MAX_PACKET_SIZE));
+
+    private WireCodec() {}
+
+    // Starts a new message in the calling thread's outbound buffer
+    private static ByteBuffer begin(byte type, int transactionId, Triplet sender)
+    {
+        ByteBuffer buffer = OUTBOUND.get();
+        buffer.clear();
+        buffer.put(VERSION);
+        buffer.put(type);
+        buffer.putInt(transactionId);
+        putContact(buffer, sender);
+        return buffer;
+    }
+
+    static ByteBuffer encode(byte type, int transactionId, Triplet sender)
+    {
+        return begin(type, transactionId, sender);
+    }
+
+    // FIND_NODE, FIND_KEY and STORED_KEY: the header plus one ID
+    static ByteBuffer encode(byte type, int transactionId, Triplet sender, KademliaId id)
+    {
+        ByteBuffer buffer = begin(type, transactionId, sender);
+        id.writeTo(buffer);
+        return buffer;
+    }
+
+    static ByteBuffer encodeStoreKey(int transactionId, Triplet sender, KademliaId keyId, byte[] value)
+    {
+        if (value.length > MAX_VALUE_SIZE) {
+            throw new IllegalArgumentException("Value of " + value.length + " bytes does not fit in a datagram");
+        }
+        ByteBuffer buffer = begin(Message.STORE_KEY, transactionId, sender);
+        keyId.writeTo(buffer);
+        buffer.putShort((short) value.length);
+        buffer.put(value);
+        return buffer;
+    }
+
+    static ByteBuffer encodeFoundKey(int transactionId, Triplet sender, Triplet holder)
+    {
+        ByteBuffer buffer = begin(Message.FOUND_KEY, transactionId, sender);
+        putContact(buffer, holder);
+        return buffer;
+    }
+
+    static ByteBuffer encodeFindNeighbours(int transactionId, Triplet sender, int wanted)
+    {
+        ByteBuffer buffer = begin(Message.FIND_NEIGHBOURS, transactionId, sender);
+        buffer.putShort((short) Math.min(wanted, MAX_CONTACTS));
+        return buffer;
+    }
+
+    static ByteBuffer encodePullKeys(int transactionId, Triplet sender, boolean more, KademliaId cursor, List<KademliaId> acks)
+    {
+        if (acks.size() > MAX_PULL_ACKS) {
+            throw new IllegalArgumentException(acks.size() + " acknowledgements do not fit in a datagram");
+        }
+        ByteBuffer buffer = begin(Message.PULL_KEYS, transactionId, sender);
+        buffer.put((byte) (more ? 1 : 0));
+        buffer.put((byte) (cursor != null ? 1 : 0));
+        if (cursor != null) {
+            cursor.writeTo(buffer);
+        } else {
+            buffer.put(new byte[KademliaId.BYTES]);
+        }
+        buffer.putShort((short) acks.size());
+        for (KademliaId keyId : acks) {
+            keyId.writeTo(buffer);
+        }
+        return buffer;
+    }
+
+    // The caller sizes the batch to PULLED_KEYS_PAYLOAD with storeKeysEntrySize()
+    static ByteBuffer encodePulledKeys(int transactionId, Triplet sender, boolean more, List<KademliaId> keyIds, List<byte[]> values)
+    {
+        ByteBuffer buffer = begin(Message.PULLED_KEYS, transactionId, sender);
+        buffer.put((byte) (more ? 1 : 0));
+        putEntries(buffer, keyIds, values);
+        return buffer;
+    }
+
+    static ByteBuffer encodeCacheLocation(int transactionId, Triplet sender, KademliaId keyId, Triplet holder, int ttlMillis)
+    {
+        ByteBuffer buffer = begin(Message.CACHE_LOCATION, transactionId, sender);
+        keyId.writeTo(buffer);
+        putContact(buffer, holder);
+        buffer.putInt(ttlMillis);
+        return buffer;
+    }
+
+    static int storeKeysEntrySize(byte[] value)
+    {
+        return KademliaId.BYTES + 2 + value.length;
+    }
+
+    // The caller sizes the batch to STORE_KEYS_PAYLOAD with storeKeysEntrySize()
+    static ByteBuffer encodeStoreKeys(int transactionId, Triplet sender, List<KademliaId> keyIds, List<byte[]> values)
+    {
+        ByteBuffer buffer = begin(Message.STORE_KEYS, transactionId, sender);
+        putEntries(buffer, keyIds, values);
+        return buffer;
+    }
+
+    private static void putEntries(ByteBuffer buffer, List<KademliaId> keyIds, List<byte[]> values)
+    {
+        buffer.putShort((short) keyIds.size());
+        for (int i = 0; i < keyIds.size(); i++) {
+            byte[] value = values.get(i);
+            keyIds.get(i).writeTo(buffer);
+            buffer.putShort((short) value.length);
+            buffer.put(value);
+        }
+    }
+
+    private static void readEntries(ByteBuffer buffer, Message message)
+    {
+        int count = buffer.getShort() & 0xFFFF;
+        for (int i = 0; i < count; i++) {
+            message.keyIds.add(KademliaId.readFrom(buffer));
+            byte[] value = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(value);
+            message.values.add(value);
+        }
+    }
+
+    static ByteBuffer encodeStoreKeysReply(int transactionId, Triplet sender, boolean[] accepted, List<Triplet> contacts)
+    {
+        ByteBuffer buffer = begin(Message.STORE_KEYS_REPLY, transactionId, sender);
+        putBitmap(buffer, accepted);
+        int count = Math.min(contacts.size(), (buffer.remaining() - 2) / CONTACT_SIZE);
+        buffer.putShort((short) count);
+        for (int i = 0; i < count; i++) {
+            putContact(buffer, contacts.get(i));
+        }
+        return buffer;
+    }
+
+    static ByteBuffer encodeFindKeys(int transactionId, Triplet sender, List<KademliaId> keyIds)
+    {
+        if (keyIds.size() > MAX_FIND_KEYS) {
+            throw new IllegalArgumentException(keyIds.size() + " keys do not fit in a datagram");
+        }
+        ByteBuffer buffer = begin(Message.FIND_KEYS, transactionId, sender);
+        buffer.putShort((short) keyIds.size());
+        for (KademliaId keyId : keyIds) {
+            keyId.writeTo(buffer);
+        }
+        return buffer;
+    }
+
+    static ByteBuffer encodeFoundKeys(int transactionId, Triplet sender, boolean[] held)
+    {
+        ByteBuffer buffer = begin(Message.FOUND_KEYS, transactionId, sender);
+        putBitmap(buffer, held);
+        return buffer;
+    }
+
+    // count:2 then one bit per flag, least significant bit first
+    private static void putBitmap(ByteBuffer buffer, boolean[] flags)
+    {
+        buffer.putShort((short) flags.length);
+        for (int i = 0; i < flags.length; i += 8) {
+            int bits = 0;
+            for (int j = 0; j < 8 && i + j < flags.length; j++) {
+                if (flags[i + j]) {
+                    bits |= 1 << j;
+                }
+            }
+            buffer.put((byte) bits);
+        }
+    }
+
+    private static boolean[] getBitmap(ByteBuffer buffer)
+    {
+        boolean[] flags = new boolean[buffer.getShort() & 0xFFFF];
+        for (int i = 0; i < flags.length; i += 8) {
+            int bits = buffer.get();
+            for (int j = 0; j < 8 && i + j < flags.length; j++) {
+                flags[i + j] = (bits & (1 << j)) != 0;
+            }
+        }
+        return flags;
+    }
+
+    static ByteBuffer encodeClosestNodes(int transactionId, Triplet sender, List<Triplet> contacts)
+    {
+        ByteBuffer buffer = begin(Message.CLOSEST_NODES, transactionId, sender);
+        int count = Math.min(contacts.size(), MAX_CONTACTS);
+        buffer.putShort((short) count);
+        for (int i = 0; i < count; i++) {
+            putContact(buffer, contacts.get(i));
+        }
+        return buffer;
+    }
+
+    static void putContact(ByteBuffer buffer, Triplet contact)
+    {
+        buffer.putInt(addressToInt(contact.getIP_ADDR()));
+        buffer.putShort((short) contact.getUDP_PORT());
+        contact.getNODE_ID().writeTo(buffer);
+    }
+
+    static Triplet getContact(ByteBuffer buffer)
+    {
+        String ip = intToAddress(buffer.getInt());
+        int port = buffer.getShort() & 0xFFFF;
+        KademliaId nodeId = KademliaId.readFrom(buffer);
+        return new Triplet(ip, port, nodeId);
+    }
+
+    static Message decode(byte[] data, int offset, int length) throws ProtocolException
+    {
+        return decode(ByteBuffer.wrap(data, offset, length));
+    }
+
+    static Message decode(ByteBuffer buffer) throws ProtocolException
+    {
+        try {
+            byte version = buffer.get();
+            if (version != VERSION) {
+                throw new ProtocolException("Unsupported protocol version " + version);
+            }
+
+            Message message = new Message();
+            message.type = buffer.get();
+            message.transactionId = buffer.getInt();
+            message.sender = getContact(buffer);
+
+            switch (message.type) {
+                case Message.PING:
+                case Message.PONG:
+                case Message.GOODBYE:
+                    break;
+                case Message.FOUND_KEY:
+                    message.holder = getContact(buffer);
+                    break;
+                case Message.FIND_NEIGHBOURS:
+                    message.wanted = buffer.getShort() & 0xFFFF;
+                    break;
+                case Message.CACHE_LOCATION:
+                    message.keyId = KademliaId.readFrom(buffer);
+                    message.holder = getContact(buffer);
+                    message.ttlMillis = buffer.getInt();
+                    break;
+                case Message.FIND_NODE:
+                    message.target = KademliaId.readFrom(buffer);
+                    break;
+                case Message.FIND_KEY:
+                case Message.STORED_KEY:
+                    message.keyId = KademliaId.readFrom(buffer);
+                    break;
+                case Message.STORE_KEY:
+                    message.keyId = KademliaId.readFrom(buffer);
+                    message.value = new byte[buffer.getShort() & 0xFFFF];
+                    buffer.get(message.value);
+                    break;
+                case Message.CLOSEST_NODES:
+                    readContacts(buffer, message);
+                    break;
+                case Message.STORE_KEYS:
+                    readEntries(buffer, message);
+                    break;
+                case Message.PULL_KEYS:
+                    message.more = buffer.get() != 0;
+                    boolean hasCursor = buffer.get() != 0;
+                    KademliaId cursor = KademliaId.readFrom(buffer);
+                    message.keyId = hasCursor ? cursor : null;
+                    int ackCount = buffer.getShort() & 0xFFFF;
+                    for (int i = 0; i < ackCount; i++) {
+                        message.keyIds.add(KademliaId.readFrom(buffer));
+                    }
+                    break;
+                case Message.PULLED_KEYS:
+                    message.more = buffer.get() != 0;
+                    readEntries(buffer, message);
+                    break;
+                case Message.STORE_KEYS_REPLY:
+                    message.accepted = getBitmap(buffer);
+                    readContacts(buffer, message);
+                    break;
+                case Message.FIND_KEYS:
+                    int findCount = buffer.getShort() & 0xFFFF;
+                    for (int i = 0; i < findCount; i++) {
+                        message.keyIds.add(KademliaId.readFrom(buffer));
+                    }
+                    break;
+                case Message.FOUND_KEYS:
+                    message.held = getBitmap(buffer);
+                    break;
+                default:
+                    throw new ProtocolException("Unknown message type " + message.type);
+            }
+            return message;
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Truncated message");
+        }
+    }
+
+    private static void readContacts(ByteBuffer buffer, Message message)
+    {
+        int count = buffer.getShort() & 0xFFFF;
+        for (int i = 0; i < count; i++) {
+            message.contacts.add(getContact(buffer));
+        }
+    }
+
+    // Parses a dotted IPv4 address without going through String.split
+    static int addressToInt(String ip)
+    {
+        int result = 0;
+        int octet = 0;
+        int dots = 0;
+        for (int i = 0; i < ip.length(); i++) {
+            char c = ip.charAt(i);
+            if (c == '.') {
+                result = (result << 8) | octet;
+                octet = 0;
+                dots++;
+            } else if (c >= '0' && c <= '9') {
+                octet = octet * 10 + (c - '0');
+                if (octet > 255) {
+                    return resolveAddress(ip);
+                }
+            } else {
+                return resolveAddress(ip);
+            }
+        }
+        if (dots != 3) {
+            return resolveAddress(ip);
+        }
+        return (result << 8) | octet;
+    }
+
+    static String intToAddress(int address)
+    {
+        return ((address >>> 24) & 0xFF) + "." + ((address >>> 16) & 0xFF) + "." +
+                ((address >>> 8) & 0xFF) + "." + (address & 0xFF);
+    }
+
+    // Fallback for host names, only hit when a contact was not given as an IPv4 literal
+    private static int resolveAddress(String host)
+    {
+        try {
+            byte[] bytes = InetAddress.getByName(host).getAddress();
+            if (bytes.length != 4) {
+                throw new IllegalArgumentException("Only IPv4 contacts are supported: " + host);
+            }
+            return ((bytes[0] & 0xFF) << 24) | ((bytes[1] & 0xFF) << 16) | ((bytes[2] & 0xFF) << 8) | (bytes[3] & 0xFF);
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("Unknown host: " + host, e);
+        }
+    }
+}